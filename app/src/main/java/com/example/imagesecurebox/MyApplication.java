@@ -2,6 +2,8 @@ package com.example.imagesecurebox;
 
 import android.app.Application;
 
+import com.example.imagesecurebox.service.SecureImageService;
+import com.example.imagesecurebox.util.CoreLogger;
 import com.orhanobut.logger.LogLevel;
 import com.orhanobut.logger.Logger;
 
@@ -10,6 +12,9 @@ import com.orhanobut.logger.Logger;
  */
 
 public class MyApplication extends Application {
+    // about one screen of tiles
+    private static final int WARM_UP_IMAGES = 12;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -18,6 +23,19 @@ public class MyApplication extends Application {
                 .methodCount(3)
                 .logLevel(LogLevel.FULL)
                 .methodOffset(2);
+        CoreLogger.setSink(new CoreLogger.Sink() {
+            @Override
+            public void d(String message) {
+                Logger.d(message);
+            }
+
+            @Override
+            public void e(String message) {
+                Logger.e(message);
+            }
+        });
+        // 在后台初始化缓存和密钥,并预先解码最近使用的图片
+        SecureImageService.getInstance(this).warmUp(WARM_UP_IMAGES);
     }
 
 }
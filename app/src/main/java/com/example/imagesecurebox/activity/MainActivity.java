@@ -2,11 +2,8 @@ package com.example.imagesecurebox.activity;
 
 import android.graphics.Bitmap;
 import android.os.Bundle;
-import android.os.Looper;
-import android.os.Message;
 import android.support.v7.app.AppCompatActivity;
 import android.widget.ImageView;
-import android.os.Handler;
 
 import com.example.imagesecurebox.R;
 import com.example.imagesecurebox.service.SecureImageService;
@@ -22,26 +19,26 @@ public class MainActivity extends AppCompatActivity {
 
     private SecureImageService mSecureImageService;
     private ImageView mSecureImageView;
-    private Handler mHandler = new Handler(Looper.getMainLooper()) {
+    private boolean mFullImageShown;
+    // called on the main thread, for REGULAR_RESOLUTION_IMAGE only
+    private SecureImageService.NotifyCallback mCallback = new SecureImageService.NotifyCallback() {
         @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
+        public void onEvent(int code, String url, Bitmap bitmap) {
+            Logger.d("onEvent, code=" + code);
+            switch (code) {
+                case NotifyCallback.NOTIFY_THUMBNAIL_READY:
+                    // shown until the full image arrives
+                    if (!mFullImageShown) {
+                        mSecureImageView.setImageBitmap(bitmap);
+                    }
+                    break;
                 case NotifyCallback.NOTIFY_FETCH_DONE:
-                    Bitmap bitmap = (Bitmap) msg.obj;
                     mSecureImageView.setImageBitmap(bitmap);
+                    mFullImageShown = true;
                     break;
                 default:
                     break;
             }
-            super.handleMessage(msg);
-        }
-    };
-
-    private SecureImageService.NotifyCallback mCallback = new SecureImageService.NotifyCallback() {
-        @Override
-        public void onEvent(int code, String url, Bitmap bitmap) {
-            Logger.d("onEvent, code=" + code);
-            mHandler.obtainMessage(code, bitmap).sendToTarget();
         }
     };
 
@@ -54,8 +51,9 @@ public class MainActivity extends AppCompatActivity {
 
         mSecureImageService = SecureImageService.getInstance(getApplicationContext());
         // 可用EventBus来进行组件间通信
-        mSecureImageService.registerNotifyCallback(mCallback);
-        mSecureImageService.fetchSecureImage(REGULAR_RESOLUTION_IMAGE);
+        mSecureImageService.registerNotifyCallback(REGULAR_RESOLUTION_IMAGE, mCallback);
+        // 页面销毁时自动取消未完成的请求
+        mSecureImageService.fetchSecureImage(REGULAR_RESOLUTION_IMAGE).bindTo(this);
     }
 
     @Override
@@ -65,7 +63,7 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     protected void onDestroy() {
-        mSecureImageService.removeNotifyCallback(mCallback);
+        mSecureImageService.removeNotifyCallback(REGULAR_RESOLUTION_IMAGE, mCallback);
         super.onDestroy();
     }
 }
@@ -0,0 +1,159 @@
+package com.example.imagesecurebox.model;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.example.imagesecurebox.util.BitmapUtils;
+
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * Byte-budgeted pool of mutable bitmaps for {@link android.graphics.BitmapFactory.Options#inBitmap}.
+ *
+ * Bitmaps are bucketed by allocation size. From KitKat on any bitmap at least as large as the
+ * decode target can be reused, before that only bitmaps of exactly the same dimensions, so the
+ * lookup is exact there. The oldest bitmaps are dropped first once the budget is exceeded.
+ */
+public class BitmapPool {
+    public static final int DEFAULT_MAX_SIZE = (int) (Runtime.getRuntime().maxMemory() / 16);
+    // don't hand out a bitmap more than this many times larger than the request
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final int mMaxSize;
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets = new TreeMap<>();
+    private final LinkedList<Bitmap> mInsertionOrder = new LinkedList<>();
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Offers a bitmap nobody references anymore. Bitmaps that can't be reused are recycled.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int size = sizeOf(bitmap);
+        if (!bitmap.isMutable() || size > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+
+        synchronized (this) {
+            LinkedList<Bitmap> bucket = mBuckets.get(size);
+            if (bucket == null) {
+                bucket = new LinkedList<>();
+                mBuckets.put(size, bucket);
+            }
+            bucket.addLast(bitmap);
+            mInsertionOrder.addLast(bitmap);
+            mSize += size;
+            mPutCount++;
+            trimToSize(mMaxSize);
+        }
+    }
+
+    /**
+     * Returns a bitmap that a decode of {@code width} x {@code height} pixels can reuse, or null.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int needed = width * height * bytesPerPixel(config);
+        Bitmap result = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Integer key = mBuckets.ceilingKey(needed);
+            if (key != null && key <= needed * MAX_SIZE_MULTIPLE) {
+                result = remove(key, mBuckets.get(key).getFirst());
+            }
+        } else {
+            LinkedList<Bitmap> bucket = mBuckets.get(needed);
+            if (bucket != null) {
+                for (Bitmap candidate : bucket) {
+                    if (candidate.getWidth() == width && candidate.getHeight() == height
+                            && candidate.getConfig() == config) {
+                        result = remove(needed, candidate);
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (result != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return result;
+    }
+
+    private Bitmap remove(int key, Bitmap bitmap) {
+        LinkedList<Bitmap> bucket = mBuckets.get(key);
+        bucket.remove(bitmap);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(key);
+        }
+        mInsertionOrder.remove(bitmap);
+        mSize -= key;
+        return bitmap;
+    }
+
+    public synchronized void trimToSize(int maxSize) {
+        while (mSize > maxSize && !mInsertionOrder.isEmpty()) {
+            Bitmap eldest = mInsertionOrder.getFirst();
+            remove(sizeOf(eldest), eldest).recycle();
+            mEvictionCount++;
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return BitmapUtils.getAllocationByteCount(bitmap);
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d/%d,hits=%d,misses=%d,hitRate=%d%%,evictions=%d]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent, mEvictionCount);
+    }
+}
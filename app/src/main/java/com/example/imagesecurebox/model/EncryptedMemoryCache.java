@@ -0,0 +1,453 @@
+package com.example.imagesecurebox.model;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+import com.orhanobut.logger.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Memory tier holding the encrypted entry bytes exactly as they are stored on disk, so a decoded
+ * bitmap miss costs a decrypt and a decode but no disk read. Plaintext never enters this cache.
+ *
+ * Entries live in fixed-size chunks carved out of direct {@link ByteBuffer} slabs that are
+ * allocated once and recycled, so caching an entry creates no heap garbage. Readers pin an entry
+ * while they stream it, an entry evicted meanwhile gives its chunks back once the last reader
+ * closes.
+ *
+ * Registered as {@link ComponentCallbacks2}, it trims at the same levels as {@link ImageLruCache}
+ * and frees the slabs no longer in use, as direct memory they don't shrink with the heap.
+ */
+public class EncryptedMemoryCache implements ComponentCallbacks2 {
+    public static final int DEFAULT_MAX_SIZE = (int) (Runtime.getRuntime().maxMemory() / 16);
+    static final int CHUNK_SIZE = 1024 * 16;
+    private static final int CHUNKS_PER_SLAB = 64;
+
+    private final int mMaxChunks;
+    // a single entry may take at most a quarter of the budget
+    private final int mMaxEntryChunks;
+    private final List<ByteBuffer> mSlabs = new ArrayList<>();
+    private final int[] mFreeChunks;
+    private int mFreeCount;
+    private int mAllocatedChunks;
+    private final LinkedHashMap<CacheKey, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    public EncryptedMemoryCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public EncryptedMemoryCache(int maxSize) {
+        mMaxChunks = Math.max(1, maxSize / CHUNK_SIZE);
+        mMaxEntryChunks = Math.max(1, mMaxChunks / 4);
+        mFreeChunks = new int[mMaxChunks];
+    }
+
+    /**
+     * Returns a stream over the cached ciphertext of {@code key}, or null. The entry stays valid
+     * until the stream is closed.
+     */
+    public synchronized InputStream open(CacheKey key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        entry.pins++;
+        return new EntryInputStream(entry);
+    }
+
+    public synchronized boolean contains(CacheKey key) {
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * Starts caching the ciphertext written to the returned stream under {@code key}. Nothing is
+     * visible until {@link Writer#commit()}, entries larger than {@link #maxEntrySize()} are dropped.
+     */
+    public Writer newWriter(CacheKey key) {
+        return new Writer(key);
+    }
+
+    /**
+     * Copies {@code in} to the end into the cache. Returns false if the entry did not fit.
+     */
+    public boolean put(CacheKey key, InputStream in) throws IOException {
+        Writer writer = newWriter(key);
+        byte[] buffer = new byte[1024 * 8];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            writer.write(buffer, 0, bytesRead);
+        }
+        return writer.commit();
+    }
+
+    /**
+     * Copies the remaining bytes of {@code data} into the cache chunk by chunk, without an
+     * intermediate heap copy. Returns false if the entry did not fit.
+     */
+    public boolean put(CacheKey key, ByteBuffer data) {
+        if (data.remaining() > maxEntrySize()) {
+            return false;
+        }
+        Writer writer = newWriter(key);
+        writer.write(data.duplicate());
+        return writer.commit();
+    }
+
+    public synchronized void remove(CacheKey key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            discard(entry);
+        }
+    }
+
+    public synchronized void trimToSize(int maxSize) {
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        while (mSize > maxSize && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            discard(entry);
+            mEvictionCount++;
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        float keep = ImageLruCache.keepFraction(level);
+        if (keep >= 1) {
+            return;
+        }
+        int slabs;
+        synchronized (this) {
+            trimToSize((int) (mSize * keep));
+            releaseFreeSlabs();
+            slabs = mSlabs.size();
+        }
+        Logger.d("Trim level " + level + ", encrypted cache trimmed to " + size() / 1024 + "KB in " + slabs
+                + " slabs");
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    // Drops slabs from the end while all their chunks are free. Chunks are numbered across slabs,
+    // so only the last one can go without moving entries. Pinned and live entries keep theirs.
+    private synchronized void releaseFreeSlabs() {
+        while (!mSlabs.isEmpty()) {
+            int first = (mSlabs.size() - 1) * CHUNKS_PER_SLAB;
+            int free = 0;
+            for (int i = 0; i < mFreeCount; i++) {
+                if (mFreeChunks[i] >= first) {
+                    free++;
+                }
+            }
+            if (free < mAllocatedChunks - first) {
+                return;
+            }
+            int kept = 0;
+            for (int i = 0; i < mFreeCount; i++) {
+                if (mFreeChunks[i] < first) {
+                    mFreeChunks[kept++] = mFreeChunks[i];
+                }
+            }
+            mFreeCount = kept;
+            mAllocatedChunks = first;
+            mSlabs.remove(mSlabs.size() - 1);
+        }
+    }
+
+    private void discard(Entry entry) {
+        mSize -= entry.length;
+        entry.evicted = true;
+        if (entry.pins == 0) {
+            freeChunks(entry.chunks, entry.chunks.length);
+        }
+    }
+
+    private synchronized void unpin(Entry entry) {
+        entry.pins--;
+        if (entry.pins == 0 && entry.evicted) {
+            freeChunks(entry.chunks, entry.chunks.length);
+        }
+    }
+
+    // evicts the least recently used entries until a chunk is free, -1 if everything is pinned
+    private synchronized int allocateChunk() {
+        if (mFreeCount == 0 && mAllocatedChunks < mMaxChunks) {
+            int chunks = Math.min(CHUNKS_PER_SLAB, mMaxChunks - mAllocatedChunks);
+            mSlabs.add(ByteBuffer.allocateDirect(chunks * CHUNK_SIZE));
+            for (int i = chunks - 1; i >= 0; i--) {
+                mFreeChunks[mFreeCount++] = mAllocatedChunks + i;
+            }
+            mAllocatedChunks += chunks;
+        }
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        while (mFreeCount == 0 && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            discard(entry);
+            mEvictionCount++;
+        }
+        return mFreeCount > 0 ? mFreeChunks[--mFreeCount] : -1;
+    }
+
+    private synchronized void freeChunks(int[] chunks, int count) {
+        for (int i = 0; i < count; i++) {
+            mFreeChunks[mFreeCount++] = chunks[i];
+        }
+    }
+
+    private synchronized void insert(CacheKey key, Entry entry) {
+        Entry previous = mEntries.put(key, entry);
+        if (previous != null) {
+            discard(previous);
+        }
+        mSize += entry.length;
+        mPutCount++;
+    }
+
+    // independent view of one chunk, safe to use without holding the lock
+    private ByteBuffer chunk(int index) {
+        ByteBuffer slab;
+        synchronized (this) {
+            slab = mSlabs.get(index / CHUNKS_PER_SLAB);
+        }
+        ByteBuffer view = slab.duplicate();
+        int start = (index % CHUNKS_PER_SLAB) * CHUNK_SIZE;
+        view.limit(start + CHUNK_SIZE);
+        view.position(start);
+        return view;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxChunks * CHUNK_SIZE;
+    }
+
+    public int maxEntrySize() {
+        return mMaxEntryChunks * CHUNK_SIZE;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("EncryptedMemoryCache[size=%d/%d,entries=%d,hits=%d,misses=%d,hitRate=%d%%,evictions=%d]",
+                mSize, maxSize(), mEntries.size(), mHitCount, mMissCount, hitPercent, mEvictionCount);
+    }
+
+    private static class Entry {
+        final int[] chunks;
+        final int length;
+        int pins;
+        boolean evicted;
+
+        Entry(int[] chunks, int length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Collects one entry chunk by chunk. Once it outgrows the budget the bytes are dropped and
+     * {@link #commit()} returns false.
+     */
+    public class Writer extends OutputStream {
+        private final CacheKey mKey;
+        private int[] mChunks = new int[4];
+        private int mChunkCount;
+        private ByteBuffer mCurrent;
+        private int mLength;
+        private boolean mFailed;
+        private boolean mDone;
+
+        Writer(CacheKey key) {
+            mKey = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mFailed || mDone) {
+                return;
+            }
+            while (len > 0) {
+                if (mCurrent == null || !mCurrent.hasRemaining()) {
+                    if (!nextChunk()) {
+                        abort();
+                        mFailed = true;
+                        return;
+                    }
+                }
+                int count = Math.min(len, mCurrent.remaining());
+                mCurrent.put(b, off, count);
+                mLength += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        void write(ByteBuffer src) {
+            if (mFailed || mDone) {
+                return;
+            }
+            while (src.hasRemaining()) {
+                if (mCurrent == null || !mCurrent.hasRemaining()) {
+                    if (!nextChunk()) {
+                        abort();
+                        mFailed = true;
+                        return;
+                    }
+                }
+                int count = Math.min(src.remaining(), mCurrent.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + count);
+                mCurrent.put(slice);
+                src.position(src.position() + count);
+                mLength += count;
+            }
+        }
+
+        private boolean nextChunk() {
+            if (mChunkCount == mMaxEntryChunks) {
+                return false;
+            }
+            int index = allocateChunk();
+            if (index == -1) {
+                return false;
+            }
+            if (mChunkCount == mChunks.length) {
+                int[] grown = new int[mChunks.length * 2];
+                System.arraycopy(mChunks, 0, grown, 0, mChunkCount);
+                mChunks = grown;
+            }
+            mChunks[mChunkCount++] = index;
+            mCurrent = chunk(index);
+            return true;
+        }
+
+        /**
+         * Publishes the entry, replacing any previous one for the same key.
+         */
+        public boolean commit() {
+            if (mFailed || mDone) {
+                return false;
+            }
+            mDone = true;
+            int[] chunks = new int[mChunkCount];
+            System.arraycopy(mChunks, 0, chunks, 0, mChunkCount);
+            insert(mKey, new Entry(chunks, mLength));
+            return true;
+        }
+
+        public void abort() {
+            if (!mDone) {
+                mDone = true;
+                freeChunks(mChunks, mChunkCount);
+            }
+        }
+
+        @Override
+        public void close() {
+            abort();
+        }
+    }
+
+    private class EntryInputStream extends InputStream {
+        private final Entry mEntry;
+        private int mPosition;
+        private ByteBuffer mCurrent;
+        private boolean mClosed;
+
+        EntryInputStream(Entry entry) {
+            mEntry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mClosed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (mPosition >= mEntry.length) {
+                return -1;
+            }
+            if (mCurrent == null || !mCurrent.hasRemaining()) {
+                mCurrent = chunk(mEntry.chunks[mPosition / CHUNK_SIZE]);
+            }
+            int count = Math.min(Math.min(len, mCurrent.remaining()), mEntry.length - mPosition);
+            mCurrent.get(b, off, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mClosed ? 0 : mEntry.length - mPosition;
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                unpin(mEntry);
+            }
+        }
+    }
+}
@@ -1,27 +1,241 @@
 package com.example.imagesecurebox.model;
 
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.util.LruCache;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
 
-import com.example.imagesecurebox.util.Md5;
+import com.example.imagesecurebox.util.BitmapUtils;
+import com.orhanobut.logger.Logger;
 
-public class ImageLruCache extends LruCache<String, Bitmap> {
-    public static final int CACHE_SIZE = (int) (Runtime.getRuntime().maxMemory() / 1024) / 8;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoded bitmaps, one entry per size variant of an image. Sizes are in KB.
+ *
+ * Registered as {@link ComponentCallbacks2}, the cache shrinks to a budget below its maximum
+ * when the system asks apps to trim memory, or flushes when the process is about to be killed.
+ * Once no trim came for {@link #RECOVERY_INTERVAL_MS} the budget grows back a quarter at a time.
+ * The support library's LruCache is used for {@code trimToSize()}, which the platform's only
+ * made public in API 17.
+ */
+public class ImageLruCache extends LruCache<VariantKey, Bitmap> implements ComponentCallbacks2 {
+    public static final int DEFAULT_MAX_SIZE = (int) (Runtime.getRuntime().maxMemory() / 1024) / 8;
+    public static final long RECOVERY_INTERVAL_MS = 10 * 1000;
+    private static final int RECOVERY_STEPS = 4;
+
+    private final BitmapPool mBitmapPool;
+    // cached variants per image, to find a larger one to scale down from
+    private final Map<CacheKey, List<VariantKey>> mVariants = new HashMap<>();
+    // size limit while the system is short of memory, guarded by this
+    private int mBudget;
+    private long mLastTrimTime;
+    private int mTrimCount;
 
     public ImageLruCache() {
-        super(CACHE_SIZE);
+        this(null);
+    }
+
+    /**
+     * Bitmaps handed to {@link #release(Bitmap)} go to {@code bitmapPool} for reuse. Evicted
+     * bitmaps never do, they were handed out and may still be on screen.
+     */
+    public ImageLruCache(BitmapPool bitmapPool) {
+        this(bitmapPool, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize in KB, e.g. from {@link MemoryBudget#getMaxSizeKb()}
+     */
+    public ImageLruCache(BitmapPool bitmapPool, int maxSize) {
+        super(maxSize);
+        mBitmapPool = bitmapPool;
+        mBudget = maxSize;
+    }
+
+    // a decode into a larger pooled bitmap keeps all of it, so the whole allocation is charged
+    @Override
+    protected int sizeOf(VariantKey key, Bitmap value) {
+        return BitmapUtils.getAllocationByteCount(value) / 1024;
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, VariantKey key, Bitmap oldValue, Bitmap newValue) {
+        if (newValue == null) {
+            removeVariant(key);
+        }
+    }
+
+    /**
+     * Takes back a bitmap the caller got from this cache and no longer displays. It is removed
+     * from the cache, so it can't be handed out again, and pooled for reuse by later decodes.
+     * Callers sharing an image must all be done with it.
+     */
+    public void release(Bitmap bitmap) {
+        for (Map.Entry<VariantKey, Bitmap> entry : snapshot().entrySet()) {
+            if (entry.getValue() == bitmap) {
+                remove(entry.getKey());
+            }
+        }
+        if (mBitmapPool != null) {
+            mBitmapPool.put(bitmap);
+        }
+    }
+
+    public void addToCache(VariantKey key, Bitmap bitmap) {
+        synchronized (mVariants) {
+            List<VariantKey> variants = mVariants.get(key.getCacheKey());
+            if (variants == null) {
+                variants = new ArrayList<>(2);
+                mVariants.put(key.getCacheKey(), variants);
+            }
+            if (!variants.contains(key)) {
+                variants.add(key);
+            }
+        }
+        put(key, bitmap);
+        int budget = getBudget();
+        if (size() > budget) {
+            trimToSize(budget);
+        }
+    }
+
+    /**
+     * The current size limit in KB, {@link #maxSize()} unless memory was trimmed recently.
+     */
+    public synchronized int getBudget() {
+        int maxSize = maxSize();
+        if (mBudget < maxSize) {
+            long steps = (SystemClock.elapsedRealtime() - mLastTrimTime) / RECOVERY_INTERVAL_MS;
+            if (steps > 0) {
+                mBudget = (int) Math.min(maxSize, mBudget + steps * maxSize / RECOVERY_STEPS);
+                mLastTrimTime += steps * RECOVERY_INTERVAL_MS;
+            }
+        }
+        return mBudget;
     }
 
     @Override
-    protected int sizeOf(String key, Bitmap value) {
-        return value.getByteCount() / 1024;
+    public void onTrimMemory(int level) {
+        float keep = keepFraction(level);
+        if (keep >= 1) {
+            return;
+        }
+        int budget;
+        synchronized (this) {
+            budget = Math.min(getBudget(), (int) (maxSize() * keep));
+            mBudget = budget;
+            mLastTrimTime = SystemClock.elapsedRealtime();
+            mTrimCount++;
+        }
+        // evicted bitmaps are only dropped, the views showing them keep them alive
+        trimToSize(budget);
+        // the pool holds released bitmaps nobody displays anymore, only those are recycled
+        if (mBitmapPool != null) {
+            mBitmapPool.trimToSize((int) (mBitmapPool.size() * keep));
+        }
+        Logger.d("Trim level " + level + ", memory cache trimmed to " + budget + "KB");
     }
 
-    public void addToCache(String url, Bitmap bitmap) {
-        put(Md5.hashKeyFor(url), bitmap);
+    // Share of the maximum size kept at a trim level. The levels are not ordered by severity,
+    // UI_HIDDEN only means nothing is visible while RUNNING_CRITICAL means the system is struggling.
+    static float keepFraction(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // in the middle or at the end of the background LRU list, likely killed next
+            return 0;
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            return 1 / 4f;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            return 1 / 2f;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 1 / 4f;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return 1 / 2f;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return 3 / 4f;
+        }
+        return 1;
     }
 
-    public Bitmap loadFromCache(String url) {
-        return get(Md5.hashKeyFor(url));
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private void removeVariant(VariantKey key) {
+        synchronized (mVariants) {
+            List<VariantKey> variants = mVariants.get(key.getCacheKey());
+            if (variants != null && variants.remove(key) && variants.isEmpty()) {
+                mVariants.remove(key.getCacheKey());
+            }
+        }
+    }
+
+    public Bitmap loadFromCache(VariantKey key) {
+        return get(key);
+    }
+
+    /**
+     * Returns the smallest cached variant that {@link VariantKey#covers covers} {@code key}, or null.
+     */
+    public Bitmap loadLargerVariant(VariantKey key) {
+        VariantKey best = null;
+        synchronized (mVariants) {
+            List<VariantKey> variants = mVariants.get(key.getCacheKey());
+            if (variants == null) {
+                return null;
+            }
+            for (VariantKey candidate : variants) {
+                if (!candidate.equals(key) && candidate.covers(key)
+                        && (best == null || best.covers(candidate))) {
+                    best = candidate;
+                }
+            }
+        }
+        return best != null ? get(best) : null;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(size(), getBudget(), maxSize(), hitCount(), missCount(), evictionCount(), mTrimCount);
+    }
+
+    public static class Stats {
+        // sizes in KB
+        public final int size;
+        public final int budget;
+        public final int maxSize;
+        public final int hits;
+        public final int misses;
+        public final int evictions;
+        public final int trims;
+
+        Stats(int size, int budget, int maxSize, int hits, int misses, int evictions, int trims) {
+            this.size = size;
+            this.budget = budget;
+            this.maxSize = maxSize;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.trims = trims;
+        }
+
+        public float getHitRate() {
+            int accesses = hits + misses;
+            return accesses != 0 ? (float) hits / accesses : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ImageLruCache[size=%d/%d/%dKB,hits=%d,misses=%d,hitRate=%d%%,evictions=%d,trims=%d]",
+                    size, budget, maxSize, hits, misses, (int) (getHitRate() * 100), evictions, trims);
+        }
     }
 }
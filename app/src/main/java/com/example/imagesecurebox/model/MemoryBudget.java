@@ -0,0 +1,73 @@
+package com.example.imagesecurebox.model;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+
+/**
+ * How much memory {@link ImageLruCache} may use at most: a fraction of the heap the app can
+ * actually get. The heap is bounded by the device's memory class, or its large memory class if
+ * the app asked for a large heap, and by what the VM reports. Low RAM devices get half.
+ */
+public class MemoryBudget {
+    public static final float DEFAULT_HEAP_FRACTION = 1 / 8f;
+    private static final int MB = 1024 * 1024;
+
+    private final long mHeapBytes;
+    private final boolean mLowRam;
+    private float mHeapFraction = DEFAULT_HEAP_FRACTION;
+
+    public MemoryBudget(long heapBytes, boolean lowRam) {
+        mHeapBytes = heapBytes;
+        mLowRam = lowRam;
+    }
+
+    public static MemoryBudget forContext(Context context) {
+        long heapBytes = Runtime.getRuntime().maxMemory();
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return new MemoryBudget(heapBytes, false);
+        }
+        boolean largeHeap = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0;
+        int memoryClass = largeHeap ? am.getLargeMemoryClass() : am.getMemoryClass();
+        if (memoryClass > 0) {
+            heapBytes = Math.min(heapBytes, (long) memoryClass * MB);
+        }
+        boolean lowRam = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && am.isLowRamDevice();
+        return new MemoryBudget(heapBytes, lowRam);
+    }
+
+    /**
+     * Share of the heap the bitmap cache may fill, {@link #DEFAULT_HEAP_FRACTION} by default.
+     */
+    public MemoryBudget setHeapFraction(float heapFraction) {
+        if (heapFraction <= 0 || heapFraction >= 1) {
+            throw new IllegalArgumentException("Heap fraction must be between 0 and 1: " + heapFraction);
+        }
+        mHeapFraction = heapFraction;
+        return this;
+    }
+
+    public long getHeapBytes() {
+        return mHeapBytes;
+    }
+
+    public boolean isLowRam() {
+        return mLowRam;
+    }
+
+    /**
+     * The cache size in KB, the unit {@link ImageLruCache} measures entries in.
+     */
+    public int getMaxSizeKb() {
+        float fraction = mLowRam ? mHeapFraction / 2 : mHeapFraction;
+        return Math.max(1, (int) (mHeapBytes * fraction / 1024));
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget[heap=" + mHeapBytes / MB + "MB,fraction=" + mHeapFraction + ",lowRam=" + mLowRam
+                + ",max=" + getMaxSizeKb() / 1024 + "MB]";
+    }
+}
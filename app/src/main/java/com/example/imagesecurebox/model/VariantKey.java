@@ -0,0 +1,94 @@
+package com.example.imagesecurebox.model;
+
+import android.graphics.Bitmap;
+
+/**
+ * Memory cache key of one decoded size of an image. Requested sizes are rounded up to a power of
+ * two per dimension, so nearby sizes share a variant, a dimension of 0 means full resolution.
+ */
+public final class VariantKey {
+    private final CacheKey mKey;
+    private final int mWidth;
+    private final int mHeight;
+    private final Bitmap.Config mConfig;
+
+    private VariantKey(CacheKey key, int width, int height, Bitmap.Config config) {
+        mKey = key;
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+    }
+
+    public static VariantKey forRequest(CacheKey key, int reqWidth, int reqHeight, Bitmap.Config config) {
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return new VariantKey(key, 0, 0, config);
+        }
+        return new VariantKey(key, bucket(reqWidth), bucket(reqHeight), config);
+    }
+
+    private static int bucket(int size) {
+        return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+
+    public CacheKey getCacheKey() {
+        return mKey;
+    }
+
+    /**
+     * Width to decode for, 0 for full resolution.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    public boolean isFullResolution() {
+        return mWidth == 0;
+    }
+
+    /**
+     * Whether a bitmap decoded for this variant is large enough to be scaled down for {@code other}.
+     */
+    public boolean covers(VariantKey other) {
+        if (!mKey.equals(other.mKey) || mConfig != other.mConfig) {
+            return false;
+        }
+        if (isFullResolution()) {
+            return true;
+        }
+        return !other.isFullResolution() && mWidth >= other.mWidth && mHeight >= other.mHeight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VariantKey)) {
+            return false;
+        }
+        VariantKey other = (VariantKey) o;
+        return mWidth == other.mWidth && mHeight == other.mHeight && mConfig == other.mConfig
+                && mKey.equals(other.mKey);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mKey.hashCode();
+        result = 31 * result + mWidth;
+        result = 31 * result + mHeight;
+        return 31 * result + mConfig.ordinal();
+    }
+
+    @Override
+    public String toString() {
+        return mKey.getHexString() + "@" + mWidth + "x" + mHeight + "/" + mConfig;
+    }
+}
@@ -1,8 +1,152 @@
 package com.example.imagesecurebox.model;
 
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Created by calvin on 8/1/16.
+ *
+ * Storage codec of cache entries. Re-encoding to WebP at quality 100 is the most expensive step of
+ * a cold fetch and often grows JPEG sources, so the codec is chosen per image:
+ * already compressed sources that fit the screen are stored as downloaded, graphics and images
+ * with alpha become lossy WebP, large photos are re-encoded as JPEG.
  */
-
 public class WebP {
+    public static final int DEFAULT_WEBP_QUALITY = 80;
+    public static final int DEFAULT_JPEG_QUALITY = 85;
+    // larger sources are re-encoded at screen size even when their format could be kept
+    public static final int MAX_PASSTHROUGH_SIZE = 1024 * 1024 * 2;
+
+    /**
+     * The downloaded bytes, for {@link Codec#PASSTHROUGH}.
+     */
+    public interface Original {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private volatile int mWebpQuality = DEFAULT_WEBP_QUALITY;
+    private volatile int mJpegQuality = DEFAULT_JPEG_QUALITY;
+    private final AtomicLong[] mEncodeCount = newCounters();
+    private final AtomicLong[] mEncodeNanos = newCounters();
+    private final AtomicLong[] mStoredBytes = newCounters();
+
+    private static AtomicLong[] newCounters() {
+        AtomicLong[] counters = new AtomicLong[Codec.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new AtomicLong();
+        }
+        return counters;
+    }
+
+    public void setWebpQuality(int quality) {
+        mWebpQuality = quality;
+    }
+
+    public void setJpegQuality(int quality) {
+        mJpegQuality = quality;
+    }
+
+    /**
+     * @param mimeType     source format as reported by the bounds decode, may be null
+     * @param sourceLength downloaded size in bytes
+     * @param sampleSize   the inSampleSize the source was decoded with for display
+     */
+    public Codec choose(String mimeType, long sourceLength, int sampleSize, boolean hasAlpha) {
+        boolean compressed = "image/jpeg".equals(mimeType) || "image/webp".equals(mimeType);
+        if (compressed && sampleSize <= 1 && sourceLength <= MAX_PASSTHROUGH_SIZE) {
+            return Codec.PASSTHROUGH;
+        }
+        if (hasAlpha || !"image/jpeg".equals(mimeType)) {
+            return Codec.WEBP;
+        }
+        return Codec.JPEG;
+    }
+
+    /**
+     * Writes the entry body with {@code codec}, returns the number of bytes written or -1 if
+     * the bitmap could not be compressed.
+     */
+    public long encode(Codec codec, Bitmap bitmap, Original original, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        CountingStream counting = new CountingStream(out);
+        boolean success = true;
+        switch (codec) {
+            case PASSTHROUGH:
+                original.writeTo(counting);
+                break;
+            case WEBP:
+                success = bitmap.compress(Bitmap.CompressFormat.WEBP, mWebpQuality, counting);
+                break;
+            case JPEG:
+                success = bitmap.compress(Bitmap.CompressFormat.JPEG, mJpegQuality, counting);
+                break;
+        }
+        if (!success) {
+            return -1;
+        }
+
+        mEncodeCount[codec.ordinal()].incrementAndGet();
+        mEncodeNanos[codec.ordinal()].addAndGet(System.nanoTime() - start);
+        mStoredBytes[codec.ordinal()].addAndGet(counting.mCount);
+        return counting.mCount;
+    }
+
+    public List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>();
+        for (Codec codec : Codec.values()) {
+            int i = codec.ordinal();
+            stats.add(new Stats(codec, mEncodeCount[i].get(), mEncodeNanos[i].get(), mStoredBytes[i].get()));
+        }
+        return stats;
+    }
+
+    /**
+     * Totals of one codec since start.
+     */
+    public static class Stats {
+        public final Codec codec;
+        public final long count;
+        public final long encodeNanos;
+        public final long storedBytes;
+
+        Stats(Codec codec, long count, long encodeNanos, long storedBytes) {
+            this.codec = codec;
+            this.count = count;
+            this.encodeNanos = encodeNanos;
+            this.storedBytes = storedBytes;
+        }
+
+        @Override
+        public String toString() {
+            long averageMs = count > 0 ? encodeNanos / count / 1000000 : 0;
+            long averageKb = count > 0 ? storedBytes / count / 1024 : 0;
+            return codec + "{count=" + count + ", avgEncode=" + averageMs + "ms, avgSize=" + averageKb + "KB}";
+        }
+    }
+
+    private static class CountingStream extends OutputStream {
+        private final OutputStream mOut;
+        private long mCount;
+
+        CountingStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mCount += len;
+        }
+    }
 }
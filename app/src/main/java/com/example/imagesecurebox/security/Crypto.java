@@ -1,153 +0,0 @@
-package com.example.imagesecurebox.security;
-
-import android.util.Base64;
-import android.util.Log;
-
-import java.io.UnsupportedEncodingException;
-import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
-import java.security.spec.KeySpec;
-
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
-
-import static android.content.ContentValues.TAG;
-
-/**
- * Created by calvin on 8/1/16.
- * http://android-developers.blogspot.com/2016/06/security-crypto-provider-deprecated-in.html
- * https://nelenkov.blogspot.com/2012/04/using-password-based-encryption-on.html
- */
-
-public class Crypto {
-    public static final String PBKDF2_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA1";
-    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
-
-    private static String DELIMITER = "]";
-
-    private static int KEY_LENGTH = 256;
-    // minimum values recommended by PKCS#5, increase as necessary
-    private static int ITERATION_COUNT = 1000;
-    private static final int PKCS5_SALT_LENGTH = 8;
-
-    private static SecureRandom mRandom = new SecureRandom();
-
-    private Crypto() {
-    }
-
-    // https://helpdesk.lastpass.com/account-settings/general/password-iterations-pbkdf2/
-    // https://en.wikipedia.org/wiki/PBKDF2
-    public static SecretKey deriveKeyPbkdf2(byte[] salt, String password) {
-        try {
-            long start = System.currentTimeMillis();
-            KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt,
-                    ITERATION_COUNT, KEY_LENGTH);
-            SecretKeyFactory keyFactory = SecretKeyFactory
-                    .getInstance(PBKDF2_DERIVATION_ALGORITHM);
-            byte[] keyBytes = keyFactory.generateSecret(keySpec).getEncoded();
-            Log.d(TAG, "key bytes: " + toHex(keyBytes));
-
-            SecretKey result = new SecretKeySpec(keyBytes, "AES");
-            long elapsed = System.currentTimeMillis() - start;
-            Log.d(TAG, String.format("PBKDF2 key derivation took %d [ms].",
-                    elapsed));
-
-            return result;
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public static byte[] generateIv(int length) {
-        byte[] b = new byte[length];
-        mRandom.nextBytes(b);
-
-        return b;
-    }
-
-    public static byte[] generateSalt() {
-        byte[] b = new byte[PKCS5_SALT_LENGTH];
-        mRandom.nextBytes(b);
-
-        return b;
-    }
-
-    // 大文件可分块进行加密,或者只加密文件的部分,以加快加解密时间
-    public static String encrypt(String plaintext, String password) {
-        try {
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            byte[] salt = Crypto.generateSalt();
-            SecretKey key = Crypto.deriveKeyPbkdf2(salt, password);
-
-            byte[] iv = generateIv(cipher.getBlockSize());
-            IvParameterSpec ivParams = new IvParameterSpec(iv);
-            cipher.init(Cipher.ENCRYPT_MODE, key, ivParams);
-            byte[] cipherText = cipher.doFinal(plaintext.getBytes("UTF-8"));
-
-            if (salt != null) {
-                return String.format("%s%s%s%s%s", toBase64(salt), DELIMITER,
-                        toBase64(iv), DELIMITER, toBase64(cipherText));
-            }
-
-            return String.format("%s%s%s", toBase64(iv), DELIMITER,
-                    toBase64(cipherText));
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public static String toHex(byte[] bytes) {
-        StringBuffer buff = new StringBuffer();
-        for (byte b : bytes) {
-            buff.append(String.format("%02X", b));
-        }
-
-        return buff.toString();
-    }
-
-    public static String toBase64(byte[] bytes) {
-        return Base64.encodeToString(bytes, Base64.NO_WRAP);
-    }
-
-    public static byte[] fromBase64(String base64) {
-        return Base64.decode(base64, Base64.NO_WRAP);
-    }
-
-    private static String decrypt(byte[] cipherBytes, SecretKey key, byte[] iv) {
-        try {
-            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
-            IvParameterSpec ivParams = new IvParameterSpec(iv);
-            cipher.init(Cipher.DECRYPT_MODE, key, ivParams);
-            Log.d(TAG, "Cipher IV: " + toHex(cipher.getIV()));
-            byte[] plaintext = cipher.doFinal(cipherBytes);
-            String plainrStr = new String(plaintext, "UTF-8");
-
-            return plainrStr;
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public static String decryptPbkdf2(String ciphertext, String password) {
-        String[] fields = ciphertext.split(DELIMITER);
-        if (fields.length != 3) {
-            throw new IllegalArgumentException("Invalid encypted text format");
-        }
-
-        byte[] salt = fromBase64(fields[0]);
-        byte[] iv = fromBase64(fields[1]);
-        byte[] cipherBytes = fromBase64(fields[2]);
-        SecretKey key = deriveKeyPbkdf2(salt, password);
-
-        return decrypt(cipherBytes, key, iv);
-    }
-
-}
@@ -0,0 +1,127 @@
+package com.example.imagesecurebox.service;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The downloaded bytes of an image, read from the network exactly once. Small images stay in a
+ * heap buffer, anything larger than {@link #MAX_IN_MEMORY_SIZE} spills to a temp file. Bounds
+ * decode, sampled decode and encoding all run from this local copy.
+ */
+class DownloadedImage {
+    static final int MAX_IN_MEMORY_SIZE = 1024 * 1024 * 4;
+    private static final int BUFFER_SIZE = 1024 * 8;
+
+    private final byte[] mData;
+    private final long mLength;
+    private final File mFile;
+
+    private DownloadedImage(byte[] data, long length, File file) {
+        mData = data;
+        mLength = length;
+        mFile = file;
+    }
+
+    /**
+     * Reads {@code in} to the end. {@code contentLength} is the advertised length, or -1 when the
+     * server did not send one.
+     */
+    static DownloadedImage download(InputStream in, long contentLength, File spillDir) throws IOException {
+        if (contentLength >= 0 && contentLength <= MAX_IN_MEMORY_SIZE) {
+            byte[] data = new byte[(int) contentLength];
+            int offset = 0;
+            while (offset < data.length) {
+                int bytesRead = in.read(data, offset, data.length - offset);
+                if (bytesRead == -1) {
+                    throw new IOException("Download truncated at " + offset + " of " + contentLength + " bytes");
+                }
+                offset += bytesRead;
+            }
+            return new DownloadedImage(data, data.length, null);
+        }
+
+        Buffer buffer = new Buffer();
+        byte[] chunk = new byte[BUFFER_SIZE];
+        int bytesRead;
+        while ((bytesRead = in.read(chunk)) != -1) {
+            buffer.write(chunk, 0, bytesRead);
+            if (buffer.size() > MAX_IN_MEMORY_SIZE) {
+                return spill(buffer, in, chunk, spillDir);
+            }
+        }
+        return new DownloadedImage(buffer.array(), buffer.size(), null);
+    }
+
+    private static DownloadedImage spill(Buffer buffer, InputStream in, byte[] chunk, File spillDir) throws IOException {
+        File file = File.createTempFile("download", ".tmp", spillDir);
+        OutputStream out = new FileOutputStream(file);
+        long length = buffer.size();
+        try {
+            buffer.writeTo(out);
+            int bytesRead;
+            while ((bytesRead = in.read(chunk)) != -1) {
+                out.write(chunk, 0, bytesRead);
+                length += bytesRead;
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            out.close();
+        }
+        return new DownloadedImage(null, length, file);
+    }
+
+    long length() {
+        return mLength;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        if (mData != null) {
+            out.write(mData, 0, (int) mLength);
+            return;
+        }
+        InputStream in = new FileInputStream(mFile);
+        try {
+            byte[] chunk = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = in.read(chunk)) != -1) {
+                out.write(chunk, 0, bytesRead);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    Bitmap decode(BitmapFactory.Options options) {
+        if (mData != null) {
+            return BitmapFactory.decodeByteArray(mData, 0, (int) mLength, options);
+        }
+        return BitmapFactory.decodeFile(mFile.getPath(), options);
+    }
+
+    void release() {
+        if (mFile != null) {
+            mFile.delete();
+        }
+    }
+
+    // Hands out the backing array, so in-memory downloads are never copied by toByteArray()
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(BUFFER_SIZE * 8);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
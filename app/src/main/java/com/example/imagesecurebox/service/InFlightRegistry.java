@@ -0,0 +1,76 @@
+package com.example.imagesecurebox.service;
+
+import android.graphics.Bitmap;
+
+import com.example.imagesecurebox.model.CacheKey;
+import com.example.imagesecurebox.model.VariantKey;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches currently queued or running, keyed by {@link VariantKey}. Requests for an image size that is already in
+ * flight join the existing {@link SharedFetch} instead of starting another download.
+ */
+class InFlightRegistry {
+    private final ConcurrentMap<VariantKey, SharedFetch> mInFlight = new ConcurrentHashMap<>();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    /**
+     * Returns the in-flight fetch for the key of {@code fetch}, or null after registering {@code fetch} as the
+     * new one, in which case the caller is responsible for running it.
+     */
+    SharedFetch join(SharedFetch fetch) {
+        mRequestCount.incrementAndGet();
+        while (true) {
+            SharedFetch existing = mInFlight.putIfAbsent(fetch.getVariant(), fetch);
+            if (existing == null) {
+                return null;
+            }
+            if (existing.retain()) {
+                mCoalescedCount.incrementAndGet();
+                return existing;
+            }
+            // every handle of it was cancelled just now, start over with our own fetch
+            mInFlight.remove(fetch.getVariant(), existing);
+        }
+    }
+
+    /**
+     * Unregisters a cancelled fetch, so later requests for its URL start a new one.
+     */
+    void remove(SharedFetch fetch) {
+        mInFlight.remove(fetch.getVariant(), fetch);
+    }
+
+    /**
+     * Whether any size of the image is being fetched.
+     */
+    boolean contains(CacheKey key) {
+        for (VariantKey variant : mInFlight.keySet()) {
+            if (variant.getCacheKey().equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void complete(SharedFetch fetch, Bitmap bitmap) {
+        mInFlight.remove(fetch.getVariant(), fetch);
+        fetch.set(bitmap);
+    }
+
+    int size() {
+        return mInFlight.size();
+    }
+
+    long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+}
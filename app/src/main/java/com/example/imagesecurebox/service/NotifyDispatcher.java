@@ -0,0 +1,163 @@
+package com.example.imagesecurebox.service;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.example.imagesecurebox.service.SecureImageService.NotifyCallback;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers pipeline events to {@link NotifyCallback}s on the main thread. Workers only queue
+ * events, everything queued until the next frame is delivered in one batch, so a screen of tiles
+ * finishing together costs one main thread message instead of one per image and listener.
+ *
+ * Listeners are registered for one URL or for every event. Both registries are copy-on-write,
+ * they are read on every delivery and changed rarely.
+ */
+class NotifyDispatcher {
+    private final List<NotifyCallback> mGlobalCallbacks = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, List<NotifyCallback>> mUrlCallbacks = new ConcurrentHashMap<>();
+    private final Queue<Event> mPending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong mEventCount = new AtomicLong();
+    private final AtomicLong mBatchCount = new AtomicLong();
+    private final AtomicLong mDroppedThumbnailCount = new AtomicLong();
+
+    // runs on the main thread, the Choreographer is per looper and can only be obtained there
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        drain();
+                    }
+                });
+            } else {
+                drain();
+            }
+        }
+    };
+
+    void register(NotifyCallback callback) {
+        mGlobalCallbacks.add(callback);
+    }
+
+    void unregister(NotifyCallback callback) {
+        mGlobalCallbacks.remove(callback);
+    }
+
+    void register(String url, NotifyCallback callback) {
+        while (true) {
+            List<NotifyCallback> callbacks = mUrlCallbacks.get(url);
+            if (callbacks == null) {
+                List<NotifyCallback> created = new CopyOnWriteArrayList<>();
+                callbacks = mUrlCallbacks.putIfAbsent(url, created);
+                if (callbacks == null) {
+                    callbacks = created;
+                }
+            }
+            callbacks.add(callback);
+            if (mUrlCallbacks.get(url) == callbacks) {
+                return;
+            }
+            // the list was emptied and dropped by unregister() meanwhile, add to a new one
+            callbacks.remove(callback);
+        }
+    }
+
+    void unregister(String url, NotifyCallback callback) {
+        List<NotifyCallback> callbacks = mUrlCallbacks.get(url);
+        if (callbacks != null && callbacks.remove(callback) && callbacks.isEmpty()) {
+            mUrlCallbacks.remove(url, callbacks);
+        }
+    }
+
+    /**
+     * Queues an event from any thread, it is delivered with the next frame.
+     */
+    void post(int code, String url, Bitmap bitmap) {
+        mPending.offer(new Event(code, url, bitmap));
+        mEventCount.incrementAndGet();
+        if (mScheduled.compareAndSet(false, true)) {
+            mMainHandler.post(mScheduleFrame);
+        }
+    }
+
+    private void drain() {
+        // events queued from here on schedule the next frame
+        mScheduled.set(false);
+        List<Event> batch = new ArrayList<>();
+        Event event;
+        while ((event = mPending.poll()) != null) {
+            batch.add(event);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        mBatchCount.incrementAndGet();
+
+        // a thumbnail is useless once the full image arrives in the same frame
+        Set<String> fetched = new HashSet<>();
+        for (Event e : batch) {
+            if (e.code == NotifyCallback.NOTIFY_FETCH_DONE) {
+                fetched.add(e.url);
+            }
+        }
+        for (Event e : batch) {
+            if (e.code == NotifyCallback.NOTIFY_THUMBNAIL_READY && fetched.contains(e.url)) {
+                mDroppedThumbnailCount.incrementAndGet();
+                continue;
+            }
+            List<NotifyCallback> callbacks = mUrlCallbacks.get(e.url);
+            if (callbacks != null) {
+                for (NotifyCallback callback : callbacks) {
+                    callback.onEvent(e.code, e.url, e.bitmap);
+                }
+            }
+            for (NotifyCallback callback : mGlobalCallbacks) {
+                callback.onEvent(e.code, e.url, e.bitmap);
+            }
+        }
+    }
+
+    long getEventCount() {
+        return mEventCount.get();
+    }
+
+    long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    long getDroppedThumbnailCount() {
+        return mDroppedThumbnailCount.get();
+    }
+
+    private static class Event {
+        final int code;
+        final String url;
+        final Bitmap bitmap;
+
+        Event(int code, String url, Bitmap bitmap) {
+            this.code = code;
+            this.url = url;
+            this.bitmap = bitmap;
+        }
+    }
+}
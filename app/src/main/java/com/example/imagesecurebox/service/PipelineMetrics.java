@@ -0,0 +1,341 @@
+package com.example.imagesecurebox.service;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the fetch pipeline. Recording is lock-free, histograms use
+ * power-of-two nanosecond buckets so a sample is one increment.
+ *
+ * While disabled every call returns right away and {@link #startTime()} doesn't even read the
+ * clock, so the instrumentation can stay in the hot path.
+ */
+public class PipelineMetrics {
+    public enum Counter {
+        // foreground lookups only, prefetch skips the memory tiers
+        MEMORY_HIT, MEMORY_MISS, ENCRYPTED_TIER_HIT, DISK_HIT, DISK_MISS,
+        DOWNLOADS, DOWNLOAD_FAILURES, DOWNLOAD_BYTES, STORED_BYTES,
+        // conditional requests for stale entries, and how many came back 304
+        REVALIDATIONS, NOT_MODIFIED
+    }
+
+    public enum Timer {
+        QUEUE_WAIT_LOOKUP, QUEUE_WAIT_DOWNLOAD, QUEUE_WAIT_TRANSCODE, QUEUE_WAIT_STORE,
+        DOWNLOAD, DECODE, ENCODE, KEY_DERIVATION, ENCRYPT, DECRYPT, STORE, END_TO_END,
+        // from request to the thumbnail callback, for images that have one
+        TIME_TO_THUMBNAIL,
+        // requests made while the service was still initializing, until they could start
+        INIT_WAIT
+    }
+
+    // a plain field: a toggle showing up a few samples late doesn't matter, a barrier per call would
+    private boolean mEnabled;
+    private final AtomicLongArray mCounters = new AtomicLongArray(Counter.values().length);
+    private final Histogram[] mHistograms = new Histogram[Timer.values().length];
+
+    PipelineMetrics(boolean enabled) {
+        mEnabled = enabled;
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new Histogram();
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Start of a timed section, 0 while disabled.
+     */
+    long startTime() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since {@code startNanos}, nothing if the section started while disabled.
+     */
+    void recordSince(Timer timer, long startNanos) {
+        if (startNanos != 0 && mEnabled) {
+            mHistograms[timer.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    void record(Timer timer, long nanos) {
+        if (mEnabled) {
+            mHistograms[timer.ordinal()].record(nanos);
+        }
+    }
+
+    void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    void add(Counter counter, long delta) {
+        if (mEnabled) {
+            mCounters.addAndGet(counter.ordinal(), delta);
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] counters = new long[mCounters.length()];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = mCounters.get(i);
+        }
+        HistogramSnapshot[] timers = new HistogramSnapshot[mHistograms.length];
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = mHistograms[i].snapshot();
+        }
+        return new Snapshot(counters, timers);
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounters.length(); i++) {
+            mCounters.set(i, 0);
+        }
+        for (Histogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    private static class Histogram {
+        // bucket i holds samples in [2^(i-1), 2^i) ns, bucket 0 holds zero
+        private final AtomicLongArray mBuckets = new AtomicLongArray(64);
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            mBuckets.incrementAndGet(Math.min(63, 64 - Long.numberOfLeadingZeros(nanos)));
+            mSum.addAndGet(nanos);
+            long max;
+            while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+                // lost a race against another sample, retry with the new max
+            }
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] buckets = new long[mBuckets.length()];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            return new HistogramSnapshot(buckets, mSum.get(), mMax.get());
+        }
+
+        void reset() {
+            for (int i = 0; i < mBuckets.length(); i++) {
+                mBuckets.set(i, 0);
+            }
+            mSum.set(0);
+            mMax.set(0);
+        }
+    }
+
+    /**
+     * Distribution of one timer. Percentiles are the upper bound of the bucket they fall in, so
+     * they overestimate by less than 2x.
+     */
+    public static class HistogramSnapshot {
+        private final long[] mBuckets;
+        public final long count;
+        public final long sumNanos;
+        public final long maxNanos;
+
+        HistogramSnapshot(long[] buckets, long sumNanos, long maxNanos) {
+            mBuckets = buckets;
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getMeanNanos() {
+            return count > 0 ? sumNanos / count : 0;
+        }
+
+        public long getPercentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : 1L << i, maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "{n=" + count + ", mean=" + formatNanos(getMeanNanos())
+                    + ", p50=" + formatNanos(getPercentileNanos(50))
+                    + ", p90=" + formatNanos(getPercentileNanos(90))
+                    + ", p99=" + formatNanos(getPercentileNanos(99))
+                    + ", max=" + formatNanos(maxNanos) + "}";
+        }
+
+        private static String formatNanos(long nanos) {
+            if (nanos >= 1000000) {
+                return String.format("%.1fms", nanos / 1e6);
+            }
+            return (nanos / 1000) + "us";
+        }
+    }
+
+    /**
+     * Totals since start or the last {@link #reset()}.
+     */
+    public static class Snapshot {
+        private final long[] mCounters;
+        private final HistogramSnapshot[] mTimers;
+
+        Snapshot(long[] counters, HistogramSnapshot[] timers) {
+            mCounters = counters;
+            mTimers = timers;
+        }
+
+        public long get(Counter counter) {
+            return mCounters[counter.ordinal()];
+        }
+
+        public HistogramSnapshot get(Timer timer) {
+            return mTimers[timer.ordinal()];
+        }
+
+        public float getMemoryHitRate() {
+            return rate(get(Counter.MEMORY_HIT), get(Counter.MEMORY_MISS));
+        }
+
+        // lookups that missed the bitmap cache, served from the encrypted tier or the disk
+        public float getDiskHitRate() {
+            long hits = get(Counter.ENCRYPTED_TIER_HIT) + get(Counter.DISK_HIT);
+            return rate(hits, get(Counter.DISK_MISS));
+        }
+
+        private static float rate(long hits, long misses) {
+            return hits + misses > 0 ? (float) hits / (hits + misses) : 0f;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("PipelineMetrics{memoryHitRate=")
+                    .append(Math.round(getMemoryHitRate() * 100)).append("%, diskHitRate=")
+                    .append(Math.round(getDiskHitRate() * 100)).append('%');
+            for (Counter counter : Counter.values()) {
+                builder.append(", ").append(counter).append('=').append(get(counter));
+            }
+            for (Timer timer : Timer.values()) {
+                if (get(timer).count > 0) {
+                    builder.append(", ").append(timer).append('=').append(get(timer));
+                }
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+    /**
+     * Adds up the time spent in the wrapped stream, to split a read pipeline into its parts.
+     */
+    static class TimedInputStream extends FilterInputStream {
+        private long mNanos;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.read();
+            } finally {
+                mNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.read(b, off, len);
+            } finally {
+                mNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return in.skip(n);
+            } finally {
+                mNanos += System.nanoTime() - start;
+            }
+        }
+
+        long getNanos() {
+            return mNanos;
+        }
+    }
+
+    /**
+     * Output counterpart of {@link TimedInputStream}.
+     */
+    static class TimedOutputStream extends FilterOutputStream {
+        private long mNanos;
+
+        TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            try {
+                out.write(b);
+            } finally {
+                mNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            try {
+                out.write(b, off, len);
+            } finally {
+                mNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            try {
+                out.flush();
+            } finally {
+                mNanos += System.nanoTime() - start;
+            }
+        }
+
+        long getNanos() {
+            return mNanos;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.imagesecurebox.service;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the fetch pipeline: a fixed number of threads fed by a bounded priority queue.
+ *
+ * Hand-offs from another stage block while the queue is full, so a slow stage pushes back on
+ * the stages feeding it instead of rejecting work. Requests admitted from outside the pipeline
+ * (usually the main thread) never block, they wait in a backlog that is drained as the queue
+ * frees up. So do hand-offs back to an earlier stage, blocking on a stage that may itself be
+ * blocked handing off to the caller's stage would deadlock both. Queued tasks run highest
+ * {@link Priority} first, FIFO within a priority, so background work yields to foreground
+ * fetches at every stage.
+ */
+public class PipelineStage {
+    private final String mName;
+    private final int mThreads;
+    private final BlockingQueue<Runnable> mQueue = new PriorityBlockingQueue<>();
+    private final BlockingQueue<PrioritizedTask> mBacklog = new PriorityBlockingQueue<>();
+    // the priority queue is unbounded, its capacity is enforced with permits
+    private final Semaphore mCapacity;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final ThreadPoolExecutor mExecutor;
+
+    private final long mStartNanos = System.nanoTime();
+    private final AtomicLong mBusyNanos = new AtomicLong();
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    private final ThreadLocal<Long> mTaskStart = new ThreadLocal<>();
+
+    PipelineStage(String name, int threads, int queueCapacity) {
+        mName = name;
+        mThreads = threads;
+        mCapacity = new Semaphore(queueCapacity);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, mQueue,
+                new StageThreadFactory(name)) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                mTaskStart.set(System.nanoTime());
+                // the task left the queue, make room for the next hand-off
+                mCapacity.release();
+                drainBacklog();
+            }
+
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                mBusyNanos.addAndGet(System.nanoTime() - mTaskStart.get());
+                mCompletedCount.incrementAndGet();
+                drainBacklog();
+            }
+        };
+    }
+
+    /**
+     * Queues {@code task}. On a pipeline thread this blocks while the stage is saturated,
+     * anywhere else the task is parked in the backlog instead.
+     */
+    void submit(Runnable task, Priority priority) {
+        if (mExecutor.isShutdown()) {
+            throw new RejectedExecutionException(mName + " stage is shut down");
+        }
+        PrioritizedTask prioritized = new PrioritizedTask(task, priority, mSequence.getAndIncrement());
+        if (!(Thread.currentThread() instanceof StageThread)) {
+            mBacklog.offer(prioritized);
+            drainBacklog();
+            return;
+        }
+        try {
+            mCapacity.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while handing off to " + mName);
+        }
+        mExecutor.execute(prioritized);
+    }
+
+    /**
+     * Queues {@code task} in the backlog, never blocks. For hand-offs from a later stage back to
+     * this one.
+     */
+    void submitBack(Runnable task, Priority priority) {
+        if (mExecutor.isShutdown()) {
+            throw new RejectedExecutionException(mName + " stage is shut down");
+        }
+        mBacklog.offer(new PrioritizedTask(task, priority, mSequence.getAndIncrement()));
+        drainBacklog();
+    }
+
+    /**
+     * Takes a task that has not started yet out of the stage, returns false if it is already
+     * running or gone.
+     */
+    boolean remove(Runnable task) {
+        for (PrioritizedTask parked : mBacklog) {
+            if (parked.task == task && mBacklog.remove(parked)) {
+                return true;
+            }
+        }
+        for (Runnable queued : mQueue) {
+            if (((PrioritizedTask) queued).task == task && mExecutor.remove(queued)) {
+                mCapacity.release();
+                drainBacklog();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drainBacklog() {
+        while (!mBacklog.isEmpty() && mCapacity.tryAcquire()) {
+            PrioritizedTask parked = mBacklog.poll();
+            if (parked == null) {
+                mCapacity.release();
+                return;
+            }
+            mExecutor.execute(parked);
+        }
+    }
+
+    int getQueueDepth() {
+        return mQueue.size() + mBacklog.size();
+    }
+
+    Stats getStats() {
+        long elapsed = System.nanoTime() - mStartNanos;
+        float utilisation = elapsed > 0 ? (float) mBusyNanos.get() / ((float) elapsed * mThreads) : 0f;
+        return new Stats(mName, mThreads, mExecutor.getActiveCount(), getQueueDepth(),
+                mCompletedCount.get(), utilisation);
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        final Runnable task;
+        final Priority priority;
+        final long sequence;
+
+        PrioritizedTask(Runnable task, Priority priority, long sequence) {
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (priority != other.priority) {
+                // higher priorities are declared later and run first
+                return other.priority.ordinal() - priority.ordinal();
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private static class StageThread extends Thread {
+        StageThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        StageThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new StageThread(r, "secure-image-" + mName + "-" + mCount.incrementAndGet());
+        }
+    }
+
+    /**
+     * Point-in-time view of a stage. Utilisation is busy thread time over available thread time
+     * since the stage was created.
+     */
+    public static class Stats {
+        public final String name;
+        public final int threads;
+        public final int active;
+        public final int queueDepth;
+        public final long completed;
+        public final float utilisation;
+
+        Stats(String name, int threads, int active, int queueDepth, long completed, float utilisation) {
+            this.name = name;
+            this.threads = threads;
+            this.active = active;
+            this.queueDepth = queueDepth;
+            this.completed = completed;
+            this.utilisation = utilisation;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{active=" + active + "/" + threads + ", queued=" + queueDepth
+                    + ", completed=" + completed + ", utilisation=" + Math.round(utilisation * 100) + "%}";
+        }
+    }
+}
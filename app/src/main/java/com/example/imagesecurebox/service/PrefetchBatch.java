@@ -0,0 +1,120 @@
+package com.example.imagesecurebox.service;
+
+import com.example.imagesecurebox.model.CacheKey;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of one {@link SecureImageService#prefetch} call. Images already on disk count as
+ * skipped, throughput is measured from the start of the batch.
+ */
+public class PrefetchBatch {
+    private final Priority mPriority;
+    private final int mTotal;
+    private final Queue<CacheKey> mPending = new ConcurrentLinkedQueue<>();
+    private final long mStartNanos = System.nanoTime();
+    private volatile long mEndNanos;
+
+    private final AtomicInteger mStoredCount = new AtomicInteger();
+    private final AtomicInteger mSkippedCount = new AtomicInteger();
+    private final AtomicInteger mFailedCount = new AtomicInteger();
+    private final AtomicLong mBytesDownloaded = new AtomicLong();
+    private final AtomicLong mBytesStored = new AtomicLong();
+
+    PrefetchBatch(Priority priority, int total) {
+        mPriority = priority;
+        mTotal = total;
+    }
+
+    Priority getPriority() {
+        return mPriority;
+    }
+
+    void add(CacheKey key) {
+        mPending.offer(key);
+    }
+
+    CacheKey next() {
+        return mPending.poll();
+    }
+
+    void onStored(long bytesDownloaded, long bytesStored) {
+        mBytesDownloaded.addAndGet(bytesDownloaded);
+        mBytesStored.addAndGet(bytesStored);
+        onProcessed(mStoredCount);
+    }
+
+    void onSkipped() {
+        onProcessed(mSkippedCount);
+    }
+
+    void onFailed(long bytesDownloaded) {
+        mBytesDownloaded.addAndGet(bytesDownloaded);
+        onProcessed(mFailedCount);
+    }
+
+    private void onProcessed(AtomicInteger counter) {
+        counter.incrementAndGet();
+        if (isDone()) {
+            mEndNanos = System.nanoTime();
+        }
+    }
+
+    public int getTotal() {
+        return mTotal;
+    }
+
+    public int getProcessedCount() {
+        return mStoredCount.get() + mSkippedCount.get() + mFailedCount.get();
+    }
+
+    public int getStoredCount() {
+        return mStoredCount.get();
+    }
+
+    public int getSkippedCount() {
+        return mSkippedCount.get();
+    }
+
+    public int getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    public long getBytesDownloaded() {
+        return mBytesDownloaded.get();
+    }
+
+    public long getBytesStored() {
+        return mBytesStored.get();
+    }
+
+    public boolean isDone() {
+        return getProcessedCount() >= mTotal;
+    }
+
+    private float getElapsedSeconds() {
+        long end = mEndNanos != 0 ? mEndNanos : System.nanoTime();
+        return (end - mStartNanos) / 1e9f;
+    }
+
+    public float getImagesPerSecond() {
+        float elapsed = getElapsedSeconds();
+        return elapsed > 0 ? getProcessedCount() / elapsed : 0f;
+    }
+
+    public float getBytesPerSecond() {
+        float elapsed = getElapsedSeconds();
+        return elapsed > 0 ? getBytesDownloaded() / elapsed : 0f;
+    }
+
+    @Override
+    public String toString() {
+        return "Prefetch{" + getProcessedCount() + "/" + mTotal + ", stored=" + getStoredCount()
+                + ", skipped=" + getSkippedCount() + ", failed=" + getFailedCount()
+                + ", " + String.format("%.1f", getImagesPerSecond()) + " images/s, "
+                + Math.round(getBytesPerSecond() / 1024) + "KB/s}";
+    }
+}
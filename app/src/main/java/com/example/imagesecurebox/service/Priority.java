@@ -0,0 +1,8 @@
+package com.example.imagesecurebox.service;
+
+/**
+ * Scheduling priority of pipeline work. Every stage runs queued tasks of a higher priority first.
+ */
+public enum Priority {
+    LOW, NORMAL, HIGH
+}
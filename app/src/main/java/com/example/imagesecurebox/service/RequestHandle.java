@@ -0,0 +1,128 @@
+package com.example.imagesecurebox.service;
+
+import android.app.Activity;
+import android.app.Application;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One caller's interest in a fetch. Several handles may share a pipeline execution, it is only
+ * stopped once every handle sharing it has been cancelled.
+ */
+public class RequestHandle implements Future<Bitmap> {
+    private final SecureImageService mService;
+    private final SharedFetch mFetch;
+    private final AtomicBoolean mCancelled = new AtomicBoolean();
+
+    RequestHandle(SecureImageService service, SharedFetch fetch) {
+        mService = service;
+        mFetch = fetch;
+    }
+
+    public String getUrl() {
+        return mFetch.getUrl();
+    }
+
+    /**
+     * Drops this request. Once every request sharing the fetch is cancelled, queued work is
+     * discarded, a running download is interrupted and no callback is made for the image.
+     * Callbacks are registered per URL, while another request keeps the fetch alive they are
+     * still called and have to be removed by their owner. Returns false if the fetch already finished.
+     */
+    public boolean cancel() {
+        if (mFetch.isDone() || !mCancelled.compareAndSet(false, true)) {
+            return false;
+        }
+        mService.release(mFetch);
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return cancel();
+    }
+
+    /**
+     * Cancels the request when {@code activity} is destroyed. Callbacks the activity registered
+     * for the URL are not removed by this, see {@link #cancel()}.
+     */
+    public RequestHandle bindTo(final Activity activity) {
+        final Application application = activity.getApplication();
+        application.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityDestroyed(Activity destroyed) {
+                if (destroyed == activity) {
+                    application.unregisterActivityLifecycleCallbacks(this);
+                    cancel();
+                }
+            }
+
+            @Override
+            public void onActivityCreated(Activity a, Bundle savedInstanceState) {
+            }
+
+            @Override
+            public void onActivityStarted(Activity a) {
+            }
+
+            @Override
+            public void onActivityResumed(Activity a) {
+            }
+
+            @Override
+            public void onActivityPaused(Activity a) {
+            }
+
+            @Override
+            public void onActivityStopped(Activity a) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity a, Bundle outState) {
+            }
+        });
+        return this;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled.get();
+    }
+
+    @Override
+    public boolean isDone() {
+        return isCancelled() || mFetch.isDone();
+    }
+
+    /**
+     * Blocks until the fetch finishes, null means the image could not be fetched.
+     */
+    @Override
+    public Bitmap get() throws InterruptedException, ExecutionException {
+        checkCancelled();
+        Bitmap bitmap = mFetch.get();
+        checkCancelled();
+        return bitmap;
+    }
+
+    @Override
+    public Bitmap get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        checkCancelled();
+        Bitmap bitmap = mFetch.get(timeout, unit);
+        checkCancelled();
+        return bitmap;
+    }
+
+    private void checkCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Fetch of " + getUrl() + " was cancelled");
+        }
+    }
+}
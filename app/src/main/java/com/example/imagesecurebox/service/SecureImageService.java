@@ -3,48 +3,120 @@ package com.example.imagesecurebox.service;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Environment;
 import android.util.DisplayMetrics;
 import android.webkit.URLUtil;
 
+import com.example.imagesecurebox.BuildConfig;
+import com.example.imagesecurebox.model.BitmapPool;
+import com.example.imagesecurebox.model.CacheKey;
+import com.example.imagesecurebox.model.Codec;
+import com.example.imagesecurebox.model.EncryptedMemoryCache;
+import com.example.imagesecurebox.model.EntryMetadata;
 import com.example.imagesecurebox.model.ImageDiskLruCache;
+import com.example.imagesecurebox.model.ImageInfo;
 import com.example.imagesecurebox.model.ImageLruCache;
+import com.example.imagesecurebox.model.MemoryBudget;
+import com.example.imagesecurebox.model.VariantKey;
+import com.example.imagesecurebox.model.WebP;
+import com.example.imagesecurebox.net.HttpFetcher;
 import com.example.imagesecurebox.security.Crypto;
+import com.example.imagesecurebox.security.KeyManager;
+import com.example.imagesecurebox.security.RecordCipher;
+import com.example.imagesecurebox.service.PipelineMetrics.Counter;
+import com.example.imagesecurebox.service.PipelineMetrics.Timer;
 import com.example.imagesecurebox.util.BitmapUtils;
+import com.example.imagesecurebox.util.ByteBufferInputStream;
 import com.orhanobut.logger.Logger;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.example.imagesecurebox.service.SecureImageService.NotifyCallback.NOTIFY_FETCH_DONE;
+import static com.example.imagesecurebox.service.SecureImageService.NotifyCallback.NOTIFY_PREFETCH_PROGRESS;
+import static com.example.imagesecurebox.service.SecureImageService.NotifyCallback.NOTIFY_THUMBNAIL_READY;
 
 /**
  * Created by calvin on 8/1/16.
  */
 
 public class SecureImageService {
+    private static final String KEY_PARAMS_FILE = "key_params";
+    // thumbnails cover this many pixels, images less than twice as large get none
+    private static final int THUMBNAIL_SIZE = 256;
+    private static final int THUMBNAIL_QUALITY = 70;
+    public static final int MAX_PREFETCH_IN_FLIGHT = 2;
+    // encrypted and decrypted once by warmUp(), enough to load the cipher and MAC providers
+    private static final int WARM_UP_SAMPLE_SIZE = 1024 * 4;
+
     private static SecureImageService sInstance;
+    private static MemoryBudget sMemoryBudget;
 
     private Context mContext;
+    private BitmapPool mBitmapPool;
     private ImageLruCache mMemoryCache;
-    private ImageDiskLruCache mDiskLruCache;
-    private ThreadPoolExecutor mThreadPoolExecutor = null;
-    private List<NotifyCallback> mNotifyCallbacks = Collections.synchronizedList(new ArrayList<NotifyCallback>());
+    private EncryptedMemoryCache mEncryptedCache;
+    private volatile ImageDiskLruCache mDiskLruCache;
+    private final WebP mStorageCodec = new WebP();
+    private PipelineStage mNetworkStage;
+    private PipelineStage mTranscodeStage;
+    private PipelineStage mStoreStage;
+    private PipelineStage mDecodeStage;
+    private final NotifyDispatcher mDispatcher = new NotifyDispatcher();
+    private volatile KeyManager mKeyManager;
+    private final InFlightRegistry mInFlightRegistry = new InFlightRegistry();
+    private final AtomicLong mCancelledCount = new AtomicLong();
+    private final AtomicLong mDroppedStepCount = new AtomicLong();
+    private final AtomicLong mInterruptedDownloadCount = new AtomicLong();
+    private final AtomicLong mStoredAfterCancelCount = new AtomicLong();
+    private final PipelineMetrics mMetrics = new PipelineMetrics(BuildConfig.DEBUG);
+    private final HttpFetcher mHttpFetcher = new HttpFetcher();
+    private ScheduledExecutorService mMetricsDumper;
+    // work submitted before the disk cache and the key were ready, run once they are
+    private final List<Runnable> mPendingInit = new ArrayList<>();
+    private volatile boolean mInitialized;
+    private final CountDownLatch mInitDone = new CountDownLatch(1);
+    private final long mServiceCreatedNanos = System.nanoTime();
+    private volatile long mStartupNanos = -1;
+    private final AtomicLong mFirstImageNanos = new AtomicLong(-1);
 
+    // Only cheap setup runs on the calling thread, usually the main thread. Opening the disk
+    // cache journal and deriving the key happen in initialize().
     private SecureImageService(Context context) {
         mContext = context;
         initCache();
         initThreadPool();
+        mStoreStage.submit(new Runnable() {
+            @Override
+            public void run() {
+                initialize();
+            }
+        }, Priority.HIGH);
+    }
+
+    /**
+     * Replaces the default budget of the bitmap cache, only takes effect before the first
+     * {@link #getInstance(Context)}.
+     */
+    public static synchronized void setMemoryBudget(MemoryBudget budget) {
+        sMemoryBudget = budget;
     }
 
     public static SecureImageService getInstance(Context context) {
@@ -59,253 +131,1165 @@ public class SecureImageService {
     }
 
     private void initCache() {
-        mMemoryCache = new ImageLruCache();
-        mDiskLruCache = new ImageDiskLruCache(mContext);
+        mBitmapPool = new BitmapPool(BitmapPool.DEFAULT_MAX_SIZE);
+        MemoryBudget budget = sMemoryBudget != null ? sMemoryBudget : MemoryBudget.forContext(mContext);
+        Logger.d("Memory cache " + budget);
+        mMemoryCache = new ImageLruCache(mBitmapPool, budget.getMaxSizeKb());
+        mContext.registerComponentCallbacks(mMemoryCache);
+        mEncryptedCache = new EncryptedMemoryCache();
+        mContext.registerComponentCallbacks(mEncryptedCache);
+    }
+
+    // Opens the disk cache, reads the secret, derives the key and loads the cache index, then
+    // starts the requests that came in meanwhile. They start even if this failed, and fail on their own.
+    private void initialize() {
+        try {
+            mDiskLruCache = new ImageDiskLruCache(getDiskCacheDir(ImageDiskLruCache.DISK_CACHE_DIR),
+                    getDiskCacheDir(ImageDiskLruCache.LEGACY_DISK_CACHE_DIR));
+            getKeyManager();
+        } catch (RuntimeException e) {
+            Logger.e(e, "Failed to initialize");
+        } finally {
+            List<Runnable> pending;
+            synchronized (mPendingInit) {
+                mStartupNanos = System.nanoTime() - mServiceCreatedNanos;
+                mInitialized = true;
+                pending = new ArrayList<>(mPendingInit);
+                mPendingInit.clear();
+            }
+            mInitDone.countDown();
+            Logger.d("Initialized in " + mStartupNanos / 1000000 + "ms, " + pending.size() + " requests were waiting");
+            for (Runnable task : pending) {
+                task.run();
+            }
+        }
     }
 
+    /**
+     * Queues {@code task} until the service is initialized. Returns false if it already is,
+     * the caller then runs the task itself.
+     */
+    private boolean deferUntilInitialized(Runnable task) {
+        if (mInitialized) {
+            return false;
+        }
+        synchronized (mPendingInit) {
+            if (mInitialized) {
+                return false;
+            }
+            mPendingInit.add(task);
+            return true;
+        }
+    }
+
+    private void awaitInitialized() throws InterruptedIOException {
+        try {
+            mInitDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while initializing");
+        }
+    }
+
+    /**
+     * Optionally run after startup: loads the cipher providers and decodes the
+     * {@code recentCount} most recently used cached images into the memory cache, so the first
+     * screen is served from memory. Runs after interactive work, callbacks get
+     * {@link NotifyCallback#NOTIFY_FETCH_DONE} for the decoded images.
+     */
+    public void warmUp(final int recentCount) {
+        final Runnable warmUp = new Runnable() {
+            @Override
+            public void run() {
+                KeyManager keys = getKeyManager();
+                long start = System.nanoTime();
+                Crypto.decrypt(Crypto.encrypt(new byte[WARM_UP_SAMPLE_SIZE], keys), keys);
+                Logger.d("Cipher providers loaded in " + (System.nanoTime() - start) / 1000000 + "ms");
+
+                DisplayMetrics dm = mContext.getResources().getDisplayMetrics();
+                for (CacheKey key : mDiskLruCache.getRecentlyUsed(recentCount)) {
+                    fetchSecureImage(key.getUrl(), dm.widthPixels, dm.heightPixels, Bitmap.Config.ARGB_8888,
+                            Priority.LOW);
+                }
+            }
+        };
+        Runnable submit = new Runnable() {
+            @Override
+            public void run() {
+                // runs on the store stage when deferred, which must not wait on decode
+                mDecodeStage.submitBack(warmUp, Priority.LOW);
+            }
+        };
+        if (!deferUntilInitialized(submit)) {
+            submit.run();
+        }
+    }
+
+    /**
+     * Time from creating the service until the disk cache and the key were ready, -1 while
+     * still initializing.
+     */
+    public long getStartupNanos() {
+        return mStartupNanos;
+    }
+
+    /**
+     * Time from creating the service until the first image was fetched, -1 until then.
+     */
+    public long getTimeToFirstImageNanos() {
+        return mFirstImageNanos.get();
+    }
+
+    private File getDiskCacheDir(String dirName) {
+        final String cachePath = Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED) ? mContext.getExternalCacheDir().getPath() : mContext.getCacheDir().getPath();
+        return new File(cachePath + File.separator + dirName);
+    }
+
+    // Network, CPU and disk work run on separate pools, so slow downloads never starve decoding.
+    // Queues hold decoded bitmaps or encoded bytes, keep them short.
     private void initThreadPool() {
         int number_of_cores = Runtime.getRuntime().availableProcessors();
-        mThreadPoolExecutor = new ThreadPoolExecutor(
-                number_of_cores,
-                number_of_cores * 4,
-                1,
-                TimeUnit.MINUTES,
-                new ArrayBlockingQueue<Runnable>(number_of_cores, true));
+        mNetworkStage = new PipelineStage("network", 4, 8);
+        mTranscodeStage = new PipelineStage("transcode", Math.max(1, number_of_cores / 2), number_of_cores);
+        mStoreStage = new PipelineStage("store", 2, 4);
+        mDecodeStage = new PipelineStage("decode", Math.max(2, number_of_cores - 1), number_of_cores * 2);
+    }
+
+    /**
+     * Pool of bitmaps decodes draw into, it also carries their hit and miss counts. Only bitmaps
+     * handed back with {@link #releaseBitmap(Bitmap)} end up here.
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Hands back a fetched bitmap no view displays anymore, for reuse by later decodes. It is
+     * dropped from the memory cache and must not be drawn afterwards.
+     */
+    public void releaseBitmap(Bitmap bitmap) {
+        mMemoryCache.release(bitmap);
+    }
+
+    /**
+     * The tier of encrypted image bytes between the bitmap cache and disk.
+     */
+    public EncryptedMemoryCache getEncryptedCache() {
+        return mEncryptedCache;
+    }
+
+    /**
+     * Size, current budget, hit rate and evictions of the decoded bitmap cache.
+     */
+    public ImageLruCache.Stats getMemoryCacheStats() {
+        return mMemoryCache.getStats();
+    }
+
+    /**
+     * Picks the storage format of new entries, its qualities can be tuned here.
+     */
+    public WebP getStorageCodec() {
+        return mStorageCodec;
+    }
+
+    public List<WebP.Stats> getCodecStats() {
+        return mStorageCodec.getStats();
+    }
+
+    /**
+     * Null while the service is initializing.
+     */
+    public ImageDiskLruCache.WriteStats getDiskWriteStats() {
+        ImageDiskLruCache cache = mDiskLruCache;
+        return cache != null ? cache.getWriteStats() : null;
+    }
+
+    /**
+     * Forces all cached entries to storage, e.g. once a whole album has been stored. Waits for
+     * the service to finish initializing.
+     */
+    public void syncDiskCache() throws IOException {
+        awaitInitialized();
+        mDiskLruCache.sync();
+    }
+
+    public List<PipelineStage.Stats> getPipelineStats() {
+        List<PipelineStage.Stats> stats = new ArrayList<>();
+        stats.add(mNetworkStage.getStats());
+        stats.add(mTranscodeStage.getStats());
+        stats.add(mStoreStage.getStats());
+        stats.add(mDecodeStage.getStats());
+        return stats;
+    }
+
+    /**
+     * The network stage's HTTP client, its timeouts can be tuned here.
+     */
+    public HttpFetcher getHttpFetcher() {
+        return mHttpFetcher;
+    }
+
+    /**
+     * Hit rates, sizes and latencies of the pipeline. Enabled in debug builds, release builds
+     * can switch it on with {@link PipelineMetrics#setEnabled(boolean)}.
+     */
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public PipelineMetrics.Snapshot getMetricsSnapshot() {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     * Logs the metrics together with the stage, disk write and codec stats every
+     * {@code intervalMs}, replacing a previous dump schedule.
+     */
+    public synchronized void startMetricsDump(long intervalMs) {
+        stopMetricsDump();
+        mMetricsDumper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "secure-image-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mMetricsDumper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                Logger.d("startup=" + getStartupNanos() / 1000000 + "ms, firstImage="
+                        + getTimeToFirstImageNanos() / 1000000 + "ms\n" + getMetricsSnapshot() + "\n" + getMemoryCacheStats() + "\n" + getPipelineStats() + "\n" + getDiskWriteStats()
+                        + "\n" + getCodecStats());
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopMetricsDump() {
+        if (mMetricsDumper != null) {
+            mMetricsDumper.shutdown();
+            mMetricsDumper = null;
+        }
+    }
+
+    /**
+     * Size, codec and length of a cached image, without decrypting it. Null if the image is not
+     * cached or the cache index is still loading.
+     */
+    public ImageInfo getImageInfo(String url) {
+        ImageDiskLruCache cache = mDiskLruCache;
+        return cache != null ? cache.getImageInfo(CacheKey.forUrl(url)) : null;
+    }
+
+    // The master key is derived once per process, by initialize() on a store thread.
+    private KeyManager getKeyManager() {
+        KeyManager keys = mKeyManager;
+        if (keys == null) {
+            synchronized (this) {
+                keys = mKeyManager;
+                if (keys == null) {
+                    File paramsFile = new File(mDiskLruCache.getDirectory(), KEY_PARAMS_FILE);
+                    keys = KeyManager.open(paramsFile, peekCryptoPassword(), KeyManager.DEFAULT_MASTER_ITERATIONS);
+                    long start = mMetrics.startTime();
+                    keys.getMasterKey();
+                    mMetrics.recordSince(Timer.KEY_DERIVATION, start);
+                    // the disk cache can only read and write its index once the key is there
+                    mDiskLruCache.setRecordCipher(new RecordCipher(keys.getIndexKey()));
+                    // measures the cipher suites on the first start, later starts read the choice
+                    keys.getCipherSuite();
+                    mKeyManager = keys;
+                }
+            }
+        }
+        return keys;
+    }
+
+    // TODO: 从本地一个二进制文件中获取加密密钥,可选的密钥管理方式还可以包括:
+    // 1. 将密钥获取规则打进so库,增加反编译难度
+    // 2. 使用隐写术获取密钥
+    // 3. 将密钥存在远程服务器上
+    private String peekCryptoPassword() {
+        try {
+            byte[] buffer = new byte[128];
+            InputStream is = mContext.getAssets().open("launcher");
+            is.read(buffer);
+            is.close();
+            return Crypto.toBase64(buffer);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to get passphase!");
+        }
+    }
+
+    private Bitmap getBitmapFromMemCache(VariantKey key) {
+        return mMemoryCache.loadFromCache(key);
     }
 
-    private Bitmap getBitmapFromMemCache(String url) {
-        return mMemoryCache.loadFromCache(url);
+    /**
+     * Fetches the image in the background, sized for the screen, and notifies the registered
+     * callbacks. Concurrent requests for the same URL share one pipeline execution.
+     */
+    public RequestHandle fetchSecureImage(String url) {
+        DisplayMetrics dm = mContext.getResources().getDisplayMetrics();
+        return fetchSecureImage(url, dm.widthPixels, dm.heightPixels, Bitmap.Config.ARGB_8888);
     }
 
-    public void fetchSecureImage(String url) {
+    /**
+     * Fetches the image decoded for a {@code reqWidth} x {@code reqHeight} target, the bitmap is
+     * at least that large unless the image itself is smaller. 0 asks for full resolution.
+     * Requests of similar sizes share a cached variant.
+     */
+    public RequestHandle fetchSecureImage(String url, int reqWidth, int reqHeight, Bitmap.Config config) {
+        return fetchSecureImage(url, reqWidth, reqHeight, config, Priority.HIGH);
+    }
+
+    private RequestHandle fetchSecureImage(String url, int reqWidth, int reqHeight, Bitmap.Config config,
+                                           Priority priority) {
         if (!URLUtil.isValidUrl(url)) {
             Logger.e("URL " + url + " is invalid!");
-            return;
+            SharedFetch failed = new SharedFetch(
+                    VariantKey.forRequest(CacheKey.forUrl(String.valueOf(url)), reqWidth, reqHeight, config));
+            failed.set(null);
+            return new RequestHandle(this, failed);
         }
 
         checkNetworkConnection();
 
-        SecureImageWorker task = new SecureImageWorker(mContext, url);
-        if (mThreadPoolExecutor.getQueue().contains(task)) {
-            Logger.d("Task already in the pool, defer submit it..");
-        } else {
-            Logger.d("Kickoff to show secure image from " + url);
-            mThreadPoolExecutor.submit(task);
+        // the key is hashed once here and carried through every cache tier
+        SharedFetch fetch = new SharedFetch(VariantKey.forRequest(CacheKey.forUrl(url), reqWidth, reqHeight, config));
+        SharedFetch inFlight = mInFlightRegistry.join(fetch);
+        if (inFlight != null) {
+            Logger.d("Joined in-flight fetch of " + url);
+            return new RequestHandle(this, inFlight);
+        }
+
+        Logger.d("Kickoff to show secure image from " + url);
+        try {
+            new SecureImageWorker(mContext, fetch, priority).start();
+        } catch (RejectedExecutionException e) {
+            Logger.e(e, "Failed to schedule fetch of " + url);
+            mInFlightRegistry.complete(fetch, null);
+        }
+        return new RequestHandle(this, fetch);
+    }
+
+    // called by RequestHandle.cancel(), stops the execution once its last handle is gone
+    void release(SharedFetch fetch) {
+        if (fetch.release()) {
+            mInFlightRegistry.remove(fetch);
+            mCancelledCount.incrementAndGet();
+            Logger.d("Cancelled fetch of " + fetch.getUrl());
+        }
+    }
+
+    /**
+     * Cancelled fetches, and what cancelling saved: steps dropped before they ran and downloads
+     * interrupted mid-read. Stores that were already running are allowed to finish.
+     */
+    public long getCancelledCount() {
+        return mCancelledCount.get();
+    }
+
+    public long getDroppedStepCount() {
+        return mDroppedStepCount.get();
+    }
+
+    public long getInterruptedDownloadCount() {
+        return mInterruptedDownloadCount.get();
+    }
+
+    public long getStoredAfterCancelCount() {
+        return mStoredAfterCancelCount.get();
+    }
+
+    /**
+     * Downloads, transcodes and encrypts {@code urls} into the disk cache without decoding them
+     * for display. At most {@link #MAX_PREFETCH_IN_FLIGHT} images of a batch are in the pipeline
+     * at once and every stage runs them after foreground work, so interactive fetches are not
+     * held up. Callbacks get {@link NotifyCallback#NOTIFY_PREFETCH_PROGRESS} per image.
+     */
+    public PrefetchBatch prefetch(Collection<String> urls, Priority priority) {
+        PrefetchBatch batch = new PrefetchBatch(priority, urls.size());
+        for (String url : urls) {
+            if (URLUtil.isValidUrl(url)) {
+                batch.add(CacheKey.forUrl(url));
+            } else {
+                Logger.e("URL " + url + " is invalid!");
+                batch.onFailed(0);
+            }
+        }
+        for (int i = 0; i < MAX_PREFETCH_IN_FLIGHT; i++) {
+            prefetchNext(batch);
+        }
+        return batch;
+    }
+
+    private void prefetchNext(PrefetchBatch batch) {
+        CacheKey key;
+        while ((key = batch.next()) != null) {
+            if (mInFlightRegistry.contains(key)) {
+                batch.onSkipped();
+                continue;
+            }
+            try {
+                new SecureImageWorker(mContext, key, batch).start();
+                return;
+            } catch (RejectedExecutionException e) {
+                Logger.e(e, "Failed to schedule prefetch of " + key.getUrl());
+                batch.onFailed(0);
+            }
         }
     }
 
+    /**
+     * Number of fetch requests made, and how many of them joined an already running fetch.
+     */
+    public long getFetchRequestCount() {
+        return mInFlightRegistry.getRequestCount();
+    }
+
+    public long getCoalescedRequestCount() {
+        return mInFlightRegistry.getCoalescedCount();
+    }
+
     private void checkNetworkConnection() {
         // TODO
     }
 
+    private enum Step {
+        LOOKUP(Timer.QUEUE_WAIT_LOOKUP),
+        DOWNLOAD(Timer.QUEUE_WAIT_DOWNLOAD),
+        TRANSCODE(Timer.QUEUE_WAIT_TRANSCODE),
+        STORE(Timer.QUEUE_WAIT_STORE);
+
+        final Timer queueWait;
+
+        Step(Timer queueWait) {
+            this.queueWait = queueWait;
+        }
+    }
+
+    /**
+     * Walks one fetch through the pipeline, each step runs on its stage and then hands the
+     * worker to the stage of the next step. Prefetch workers stop once the image is on disk.
+     */
     private class SecureImageWorker implements Runnable {
+        private SharedFetch mFetch;
+        private PrefetchBatch mBatch;
+        private Priority mPriority;
+        private CacheKey mKey;
+        private VariantKey mVariant;
         private String mUrl;
         private Context mContext;
+        private Step mStep = Step.LOOKUP;
+        private DownloadedImage mDownload;
+        private Bitmap mDecoded;
+        private byte[] mEncoded;
+        private Codec mCodec;
+        private boolean mFinished;
+        // where the worker is queued or running, and the response of a running download
+        private volatile PipelineStage mStage;
+        private volatile HttpFetcher.Response mResponse;
+        // metadata of a stale disk entry being revalidated, and of the response being stored
+        private EntryMetadata mRevalidating;
+        private boolean mRevalidated;
+        private boolean mNotModified;
+        private final EntryMetadata mMetadata = new EntryMetadata();
+        private boolean mSkipped;
+        private boolean mStored;
+        // preview of a large image, decoded before the full image and stored next to it
+        private Bitmap mThumbnail;
+        private boolean mThumbnailDelivered;
+        private long mDownloadedBytes;
+        private long mStoredBytes;
+        // metrics timestamps, 0 while metrics are disabled
+        private final long mCreatedNanos = mMetrics.startTime();
+        private long mQueuedNanos;
+        private long mDecryptNanos;
+        // where the first pass of the cached decode found the entry
+        private Counter mLookupResult;
 
-        public SecureImageWorker(Context context, String url) {
+        public SecureImageWorker(Context context, SharedFetch fetch, Priority priority) {
             mContext = context;
-            mUrl = url;
+            mFetch = fetch;
+            mPriority = priority;
+            mVariant = fetch.getVariant();
+            mKey = fetch.getKey();
+            mUrl = mKey.getUrl();
+            fetch.setCancelListener(new Runnable() {
+                @Override
+                public void run() {
+                    cancel();
+                }
+            });
+        }
+
+        // before the service is initialized the worker waits, and can only fail once it is.
+        // Starting never blocks: it may run on a stage thread, from initialize() on the store
+        // stage, from warmUp() on the decode stage or when a prefetch finishes.
+        void start() {
+            boolean deferred = deferUntilInitialized(new Runnable() {
+                @Override
+                public void run() {
+                    mMetrics.recordSince(Timer.INIT_WAIT, mCreatedNanos);
+                    try {
+                        moveBack(Step.LOOKUP, mDecodeStage);
+                    } catch (RejectedExecutionException e) {
+                        Logger.e(e, "Failed to schedule " + mUrl);
+                        finish(null);
+                    }
+                }
+            });
+            if (!deferred) {
+                moveBack(Step.LOOKUP, mDecodeStage);
+            }
+        }
+
+        private boolean isCancelled() {
+            return mFetch != null && mFetch.isCancelled();
+        }
+
+        // runs on the cancelling thread
+        private void cancel() {
+            PipelineStage stage = mStage;
+            if (stage != null && stage.remove(this)) {
+                // never picked up, so nothing else touches the worker anymore
+                mDroppedStepCount.incrementAndGet();
+                finish(null);
+                return;
+            }
+            HttpFetcher.Response response = mResponse;
+            if (response != null) {
+                mInterruptedDownloadCount.incrementAndGet();
+                response.disconnect();
+            }
+        }
+
+        public SecureImageWorker(Context context, CacheKey key, PrefetchBatch batch) {
+            mContext = context;
+            mBatch = batch;
+            mPriority = batch.getPriority();
+            mKey = key;
+            mUrl = key.getUrl();
         }
 
         @Override
         public void run() {
-            // 1. Is there already a decrepted bitmap?
-            Bitmap bitmap = getBitmapFromMemCache(mUrl);
-            if (bitmap == null) {
-                bitmap = decryptFromDisk();
+            mMetrics.recordSince(mStep.queueWait, mQueuedNanos);
+            try {
+                runStep();
+            } catch (RuntimeException e) {
+                finish(null);
+                throw e;
             }
+        }
 
-            // 2. cache missed, now fetch from network
-            if (bitmap == null) {
-                bitmap = downloadUrlAsBitmap(mUrl);
-                if (bitmap != null) {
-                    // 3. convert to webp
-                    byte[] webpData = convertToWebp(bitmap);
+        private void runStep() {
+            // a cancelled fetch that got as far as storing is nearly done, let it finish writing
+            if (isCancelled() && mStep != Step.STORE) {
+                Logger.d("Dropped " + mStep + " of cancelled fetch " + mUrl);
+                mDroppedStepCount.incrementAndGet();
+                finish(null);
+                return;
+            }
+            switch (mStep) {
+                case LOOKUP:
+                    if (mBatch != null) {
+                        // prefetch only needs a fresh encrypted entry on disk, the index tells
+                        // without opening it
+                        ImageInfo info = mDiskLruCache.getImageInfo(mKey);
+                        if (info != null && info.isStale(System.currentTimeMillis())) {
+                            mRevalidating = mDiskLruCache.loadMetadata(mKey);
+                        }
+                        mSkipped = info != null && mRevalidating == null;
+                        if (mSkipped) {
+                            finish(null);
+                        } else {
+                            moveTo(Step.DOWNLOAD, mNetworkStage);
+                        }
+                        break;
+                    }
+                    // 1. Is there already a decrepted bitmap?
+                    Bitmap bitmap = getBitmapFromMemCache(mVariant);
+                    if (bitmap == null) {
+                        bitmap = scaleLargerVariant();
+                    }
+                    if (!mRevalidated) {
+                        mMetrics.increment(bitmap != null ? Counter.MEMORY_HIT : Counter.MEMORY_MISS);
+                    }
+                    if (bitmap == null) {
+                        bitmap = decryptCached();
+                    }
+                    if (bitmap != null) {
+                        finish(bitmap);
+                    } else {
+                        moveTo(Step.DOWNLOAD, mNetworkStage);
+                    }
+                    break;
+                case DOWNLOAD:
+                    // 2. cache missed, now fetch from network, the bytes are read exactly once
+                    long downloadStart = mMetrics.startTime();
+                    mDownload = downloadUrl(mUrl);
+                    if (mNotModified) {
+                        refreshRevalidated();
+                    } else if (mDownload == null && mRevalidating != null && mBatch == null && !isCancelled()) {
+                        // the server could not be asked, a stale image beats none
+                        Logger.d("Revalidation of " + mUrl + " failed, serving the cached copy");
+                        mRevalidating = null;
+                        mRevalidated = true;
+                        moveBack(Step.LOOKUP, mDecodeStage);
+                    } else if (mDownload != null) {
+                        mMetrics.recordSince(Timer.DOWNLOAD, downloadStart);
+                        mMetrics.increment(Counter.DOWNLOADS);
+                        mMetrics.add(Counter.DOWNLOAD_BYTES, mDownload.length());
+                        moveTo(Step.TRANSCODE, mTranscodeStage);
+                    } else {
+                        if (!isCancelled()) {
+                            Logger.e("Failed to download image from " + mUrl);
+                            mMetrics.increment(Counter.DOWNLOAD_FAILURES);
+                        }
+                        finish(null);
+                    }
+                    break;
+                case TRANSCODE:
+                    // 3. decode the local copy and encode it for storage
+                    mDownloadedBytes = mDownload.length();
+                    mThumbnail = decodeThumbnail(mDownload);
+                    if (mThumbnail != null) {
+                        deliverThumbnail(mThumbnail);
+                    }
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    long decodeStart = mMetrics.startTime();
+                    mDecoded = decodeDownload(mDownload, options);
+                    mMetrics.recordSince(Timer.DECODE, decodeStart);
+                    if (mDecoded != null) {
+                        // the stored image has the decoded size, whatever the codec
+                        mMetadata.setSize(mDecoded.getWidth(), mDecoded.getHeight());
+                        long encodeStart = mMetrics.startTime();
+                        mEncoded = encodeForStorage(mDownload, mDecoded, options);
+                        mMetrics.recordSince(Timer.ENCODE, encodeStart);
+                    }
+                    mDownload.release();
+                    mDownload = null;
+                    if (mBatch != null && mDecoded != null) {
+                        // prefetched images are never displayed, their pixels go back right away
+                        mBitmapPool.put(mDecoded);
+                        mDecoded = null;
+                    } else if (mDecoded != null) {
+                        // the disk copy is screen sized, the caller may have asked for less
+                        Bitmap sized = BitmapUtils.scaleDown(mDecoded, mVariant.getWidth(), mVariant.getHeight(),
+                                mVariant.getConfig(), mBitmapPool);
+                        if (sized != mDecoded) {
+                            mBitmapPool.put(mDecoded);
+                            mDecoded = sized;
+                        }
+                    }
+                    if (mEncoded != null) {
+                        moveTo(Step.STORE, mStoreStage);
+                    } else {
+                        finish(mDecoded);
+                    }
+                    break;
+                case STORE:
+                    // 4. encrypt the image data and save it to disk, the bitmap we already
+                    // decoded is handed out as is instead of decrypting it again
+                    mStoredBytes = mEncoded.length;
+                    long storeStart = mMetrics.startTime();
+                    mStored = encryptImage(mEncoded);
+                    mMetrics.recordSince(Timer.STORE, storeStart);
+                    if (mStored) {
+                        mMetrics.add(Counter.STORED_BYTES, mStoredBytes);
+                    }
+                    mEncoded = null;
+                    if (mStored && isCancelled()) {
+                        mStoredAfterCancelCount.incrementAndGet();
+                    }
+                    if (mDecoded != null && isCancelled()) {
+                        // nobody can get the bitmap anymore, every handle on the fetch was cancelled
+                        mBitmapPool.put(mDecoded);
+                        mDecoded = null;
+                    } else if (mDecoded != null) {
+                        mMemoryCache.addToCache(mVariant, mDecoded);
+                    }
+                    finish(mDecoded);
+                    // after the callbacks, the full image is what the caller waits for
+                    if (mStored && mThumbnail != null) {
+                        storeThumbnail(mThumbnail);
+                    }
+                    mThumbnail = null;
+                    break;
+            }
+        }
 
-                    if (webpData != null) {
-                        // 4. encrypt the image data and save it to disk
-                        encryptImage(webpData);
+        // A subsampled decode of the download, a fraction of the full decode. Images that are
+        // small already decode fast enough and get none.
+        private Bitmap decodeThumbnail(final DownloadedImage download) {
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            download.decode(bounds);
+            if (Math.max(bounds.outWidth, bounds.outHeight) < THUMBNAIL_SIZE * 2) {
+                return null;
+            }
+            try {
+                // not from the pool, the callbacks keep it
+                return BitmapUtils.decodeWithBounds(new BitmapUtils.Source() {
+                    @Override
+                    public Bitmap decode(BitmapFactory.Options options) {
+                        return download.decode(options);
+                    }
+                }, bounds.outWidth, bounds.outHeight, THUMBNAIL_SIZE, THUMBNAIL_SIZE, null, null);
+            } catch (IOException e) {
+                Logger.e(e, "Failed to decode thumbnail of " + mUrl);
+                return null;
+            }
+        }
+
+        private void storeThumbnail(Bitmap thumbnail) {
+            Codec codec = thumbnail.hasAlpha() ? Codec.WEBP : Codec.JPEG;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            if (!thumbnail.compress(codec == Codec.WEBP ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG,
+                    THUMBNAIL_QUALITY, baos)) {
+                Logger.e("Encoding thumbnail of " + mUrl + " failed!");
+                return;
+            }
+            final byte[] data = baos.toByteArray();
+            final KeyManager keys = getKeyManager();
+            mDiskLruCache.addThumbnailToCache(mKey, new ImageDiskLruCache.EntryWriter() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    Crypto.encrypt(data, keys, out);
+                }
+            }, new EntryMetadata().setCodec(codec).setSize(thumbnail.getWidth(), thumbnail.getHeight())
+                    .setLength(data.length));
+        }
 
-                        // 5. decrypt
-                        bitmap.recycle();
-                        bitmap = decryptFromDisk();
+        // Small enough to decrypt and decode in a few ms, shown while the full entry is decoded
+        private void deliverCachedThumbnail() {
+            ByteBuffer encrypted = mDiskLruCache.loadThumbnailFromCache(mKey);
+            if (encrypted == null) {
+                return;
+            }
+            try {
+                InputStream in = Crypto.newDecryptingStream(new ByteBufferInputStream(encrypted), getKeyManager());
+                try {
+                    Bitmap thumbnail = BitmapFactory.decodeStream(in);
+                    if (thumbnail != null) {
+                        deliverThumbnail(thumbnail);
                     }
-                } else {
-                    Logger.e("Failed to download image from " + mUrl);
+                } finally {
+                    in.close();
                 }
+            } catch (IOException e) {
+                Logger.e(e, "Failed to decrypt thumbnail of " + mUrl);
             }
+        }
+
+        private void deliverThumbnail(Bitmap thumbnail) {
+            if (mBatch != null || mThumbnailDelivered || isCancelled()) {
+                return;
+            }
+            mThumbnailDelivered = true;
+            mMetrics.recordSince(Timer.TIME_TO_THUMBNAIL, mCreatedNanos);
+            mDispatcher.post(NOTIFY_THUMBNAIL_READY, mUrl, thumbnail);
+        }
+
+        // 304: the entry on disk is current, only its validators and expiry are rewritten
+        private void refreshRevalidated() {
+            mMetrics.increment(Counter.NOT_MODIFIED);
+            mDiskLruCache.updateMetadata(mKey, mRevalidating);
+            mRevalidating = null;
+            if (mBatch != null) {
+                mSkipped = true;
+                finish(null);
+                return;
+            }
+            mRevalidated = true;
+            moveBack(Step.LOOKUP, mDecodeStage);
+        }
+
+        private void moveTo(Step step, PipelineStage stage) {
+            mStep = step;
+            mStage = stage;
+            mQueuedNanos = mMetrics.startTime();
+            stage.submit(this, mPriority);
+        }
 
-            if (bitmap != null) {
-                for (NotifyCallback callback : mNotifyCallbacks) {
-                    callback.onEvent(NOTIFY_FETCH_DONE, mUrl, bitmap);
+        // to an earlier stage, which may be blocked handing off to the current one, or into the
+        // pipeline from any thread
+        private void moveBack(Step step, PipelineStage stage) {
+            mStep = step;
+            mStage = stage;
+            mQueuedNanos = mMetrics.startTime();
+            stage.submitBack(this, mPriority);
+        }
+
+        private void finish(Bitmap bitmap) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            if (mDownload != null) {
+                mDownload.release();
+                mDownload = null;
+            }
+            if (mBatch != null) {
+                finishPrefetch();
+                return;
+            }
+
+            try {
+                if (isCancelled()) {
+                    Logger.d("Fetch of " + mUrl + " was cancelled, skipping callbacks");
+                } else if (bitmap != null) {
+                    mFirstImageNanos.compareAndSet(-1, System.nanoTime() - mServiceCreatedNanos);
+                    mDispatcher.post(NOTIFY_FETCH_DONE, mUrl, bitmap);
+                } else {
+                    Logger.e("Failed to fetch bitmap anyway...");
                 }
-            } else {
-                Logger.e("Failed to fetch bitmap anyway...");
+            } finally {
+                mInFlightRegistry.complete(mFetch, bitmap);
             }
+            mMetrics.recordSince(Timer.END_TO_END, mCreatedNanos);
+        }
 
-            Logger.d("ThreadPool status:" + mThreadPoolExecutor);
+        private void finishPrefetch() {
+            if (mSkipped) {
+                mBatch.onSkipped();
+            } else if (mStored) {
+                mBatch.onStored(mDownloadedBytes, mStoredBytes);
+            } else {
+                mBatch.onFailed(mDownloadedBytes);
+            }
+            mDispatcher.post(NOTIFY_PREFETCH_PROGRESS, mUrl, null);
+            if (mBatch.isDone()) {
+                Logger.d("Prefetch finished: " + mBatch);
+            }
+            prefetchNext(mBatch);
         }
 
         // 4.0以上系统原生支持webp格式,4.0以下系统需要使用libweb库来添加webp媒体类型支持
-        private byte[] convertToWebp(Bitmap bitmap) {
-            Logger.d("Converting to webp format...");
+        private byte[] encodeForStorage(final DownloadedImage download, Bitmap bitmap, BitmapFactory.Options options) {
+            mCodec = mStorageCodec.choose(options.outMimeType, download.length(), options.inSampleSize, bitmap.hasAlpha());
+            Logger.d("Encoding " + options.outMimeType + " for storage as " + mCodec + "...");
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            boolean success = bitmap.compress(Bitmap.CompressFormat.WEBP, 100, baos);
-            if (success) {
-                return baos.toByteArray();
-            } else {
-                Logger.e("Convert image to webp format failed!");
+            try {
+                long length = mStorageCodec.encode(mCodec, bitmap, new WebP.Original() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        download.writeTo(out);
+                    }
+                }, baos);
+                if (length >= 0) {
+                    return baos.toByteArray();
+                }
+            } catch (IOException e) {
+                Logger.e(e, "Failed to read " + mUrl);
             }
+            Logger.e("Encoding image as " + mCodec + " failed!");
             return null;
         }
 
-        private boolean encryptImage(byte[] data) {
+        private boolean encryptImage(final byte[] data) {
             Logger.d("Encrypting bitmap...");
-            try {
-                String cipherText = Crypto.encrypt(Crypto.toBase64(data), peekCryptoPassword());
-                mDiskLruCache.addToCache(mUrl, cipherText.getBytes("UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-                return false;
+            final KeyManager keys = getKeyManager();
+            EntryMetadata metadata = mMetadata.setCodec(mCodec).setLength(data.length);
+            if (mBatch != null) {
+                // prefetched images only go to disk, the memory tiers are for what is on screen
+                return mDiskLruCache.addToCache(mKey, new ImageDiskLruCache.EntryWriter() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        encrypt(data, keys, out);
+                    }
+                }, metadata);
             }
 
-            return true;
+            // the ciphertext goes to disk and the encrypted memory tier in one pass
+            final EncryptedMemoryCache.Writer cached = mEncryptedCache.newWriter(mKey);
+            boolean stored = mDiskLruCache.addToCache(mKey, new ImageDiskLruCache.EntryWriter() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    encrypt(data, keys, new FilterOutputStream(out) {
+                        @Override
+                        public void write(int b) throws IOException {
+                            out.write(b);
+                            cached.write(b);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                            cached.write(b, off, len);
+                        }
+                    });
+                }
+            }, metadata);
+            if (stored) {
+                cached.commit();
+            } else {
+                cached.abort();
+            }
+            return stored;
         }
 
-        // TODO: handle OOM
-        // 使用流加密
-        private Bitmap decryptFromDisk() {
-            byte[] encryptBytes = mDiskLruCache.loadFromCache(mUrl);
-            if (encryptBytes == null) {
+        // AES time is the encrypt call minus the time spent writing out the ciphertext
+        private void encrypt(byte[] data, KeyManager keys, OutputStream out) throws IOException {
+            long start = mMetrics.startTime();
+            if (start == 0) {
+                Crypto.encrypt(data, keys, out);
+                return;
+            }
+            PipelineMetrics.TimedOutputStream timed = new PipelineMetrics.TimedOutputStream(out);
+            Crypto.encrypt(data, keys, timed);
+            mMetrics.record(Timer.ENCRYPT, System.nanoTime() - start - timed.getNanos());
+        }
+
+        // a cached larger size is scaled down instead of decoding the image again
+        private Bitmap scaleLargerVariant() {
+            Bitmap larger = mMemoryCache.loadLargerVariant(mVariant);
+            if (larger == null) {
                 return null;
             }
+            Bitmap scaled = BitmapUtils.scaleDown(larger, mVariant.getWidth(), mVariant.getHeight(),
+                    mVariant.getConfig(), mBitmapPool);
+            // a bitmap must not be cached twice, its size would be counted for both entries
+            if (scaled != larger) {
+                mMemoryCache.addToCache(mVariant, scaled);
+            }
+            Logger.d("Scaled cached variant down to " + mVariant);
+            return scaled;
+        }
 
+        // 使用流解密, 内存占用与图片大小无关. 密文优先从内存层读取, 否则先把磁盘上的密文载入内存层
+        private Bitmap decryptCached() {
+            ImageInfo info = mDiskLruCache.getImageInfo(mKey);
+            if (!mRevalidated && info != null && info.isStale(System.currentTimeMillis())) {
+                mRevalidating = mDiskLruCache.loadMetadata(mKey);
+                if (mRevalidating != null) {
+                    // served again once the server confirms it with a 304
+                    Logger.d("Cached " + mUrl + " is stale, revalidating");
+                    return null;
+                }
+            }
+            // only worth it when the request is larger than the thumbnail
+            ImageInfo thumbnailInfo = mDiskLruCache.getThumbnailInfo(mKey);
+            if (thumbnailInfo != null && !mThumbnailDelivered
+                    && (mVariant.getWidth() == 0 || mVariant.getWidth() > thumbnailInfo.width
+                    || mVariant.getHeight() > thumbnailInfo.height)) {
+                deliverCachedThumbnail();
+            }
+            final long start = mMetrics.startTime();
+            mDecryptNanos = 0;
+            mLookupResult = null;
             try {
-                String decrypttext = Crypto.decryptPbkdf2(new String(encryptBytes, "UTF-8"), peekCryptoPassword());
-                if (decrypttext != null) {
-                    byte[] decryptBytes = Crypto.fromBase64(decrypttext);
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(decryptBytes, 0, decryptBytes.length);
-                    if (bitmap != null) {
-                        mMemoryCache.addToCache(mUrl, bitmap);
-                        Logger.d("Decrepted bitmap from disk");
-                        return bitmap;
+                BitmapUtils.Source source = new BitmapUtils.Source() {
+                    @Override
+                    public Bitmap decode(BitmapFactory.Options options) throws IOException {
+                        InputStream encrypted = openEncrypted();
+                        if (encrypted == null) {
+                            return null;
+                        }
+                        InputStream in = null;
+                        PipelineMetrics.TimedInputStream timed = null;
+                        try {
+                            in = Crypto.newDecryptingStream(encrypted, getKeyManager());
+                            if (start != 0) {
+                                // what the decoder waits on the decrypting stream is AES time
+                                in = timed = new PipelineMetrics.TimedInputStream(in);
+                            }
+                            return BitmapFactory.decodeStream(in, null, options);
+                        } finally {
+                            if (in != null) {
+                                in.close();
+                            }
+                            encrypted.close();
+                            if (timed != null) {
+                                mDecryptNanos += timed.getNanos();
+                            }
+                        }
                     }
+                };
+                Bitmap bitmap;
+                if (info != null && info.hasBounds()) {
+                    // the index knows the size, the ciphertext is decrypted only once
+                    bitmap = BitmapUtils.decodeWithBounds(source, info.width, info.height, mVariant.getWidth(),
+                            mVariant.getHeight(), mVariant.getConfig(), mBitmapPool);
+                } else {
+                    bitmap = BitmapUtils.decode(source, mVariant.getWidth(), mVariant.getHeight(),
+                            mVariant.getConfig(), mBitmapPool);
+                }
 
+                if (mLookupResult != null) {
+                    mMetrics.increment(mLookupResult);
+                }
+                if (start != 0 && bitmap != null) {
+                    mMetrics.record(Timer.DECRYPT, mDecryptNanos);
+                    mMetrics.record(Timer.DECODE, System.nanoTime() - start - mDecryptNanos);
                 }
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
+                if (bitmap != null && !isCancelled()) {
+                    mMemoryCache.addToCache(mVariant, bitmap);
+                }
+                if (bitmap != null) {
+                    Logger.d("Decrepted bitmap from cache");
+                    return bitmap;
+                }
+            } catch (IOException e) {
+                Logger.e(e, "Failed to decrypt " + mUrl);
             }
             return null;
         }
 
+        private InputStream openEncrypted() {
+            InputStream cached = mEncryptedCache.open(mKey);
+            if (cached != null) {
+                setLookupResult(Counter.ENCRYPTED_TIER_HIT);
+                return cached;
+            }
+
+            // large entries come back memory-mapped and are decrypted straight from the mapping
+            ByteBuffer encrypted = mDiskLruCache.loadBufferFromCache(mKey);
+            if (encrypted == null) {
+                setLookupResult(Counter.DISK_MISS);
+                return null;
+            }
+            setLookupResult(Counter.DISK_HIT);
+            if (mEncryptedCache.put(mKey, encrypted)) {
+                cached = mEncryptedCache.open(mKey);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            return new ByteBufferInputStream(encrypted);
+        }
+
+        // the decode opens the entry once for bounds and once for pixels, only the first counts
+        private void setLookupResult(Counter result) {
+            if (mLookupResult == null) {
+                mLookupResult = result;
+            }
+        }
+
         // 图片加载可使用Fresco库
-        private Bitmap downloadUrlAsBitmap(String imageUrl) {
-            Logger.d("Fetching bitmap from network...");
-            DisplayMetrics dm = mContext.getResources().getDisplayMetrics();
-            int reqWidth = dm.widthPixels;
-            int reqHeight = dm.heightPixels;
-            HttpURLConnection urlConnection = null;
-            InputStream in = null;
+        private DownloadedImage downloadUrl(String imageUrl) {
+            Logger.d("Fetching image from network...");
+            HttpFetcher.Response response = null;
+            boolean reusable = false;
 
             try {
-                urlConnection = openConnection(imageUrl);
-                in = urlConnection.getInputStream();
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeStream(in, null, options);
-                options.inSampleSize = BitmapUtils.calculateInSampleSize(options, reqWidth, reqHeight);
-                urlConnection.disconnect();
-                in.close();
-
-                urlConnection = openConnection(imageUrl);
-                in = urlConnection.getInputStream();
-                options.inJustDecodeBounds = false;
-
-                // TODO improve this
-                options.inPurgeable = true;
-                /*
-                try {
-                    BitmapFactory.Options.class.getField("inNativeAlloc").setBoolean(options, true);
-                } catch (IllegalAccessException e) {
-                    // ignore
-                }*/
-
-                return BitmapFactory.decodeStream(in, null, options);
+                if (mRevalidating != null) {
+                    mMetrics.increment(Counter.REVALIDATIONS);
+                }
+                response = mHttpFetcher.open(imageUrl, mRevalidating);
+                mResponse = response;
+                if (isCancelled()) {
+                    return null;
+                }
+                if (response.isNotModified() && mRevalidating != null) {
+                    response.copyValidatorsTo(mRevalidating);
+                    mNotModified = true;
+                    reusable = true;
+                    return null;
+                }
+                if (!response.isSuccessful()) {
+                    Logger.e("Unexpected response " + response.getCode() + " for " + imageUrl);
+                    reusable = true;
+                    return null;
+                }
+                response.copyValidatorsTo(mMetadata);
+                DownloadedImage download = DownloadedImage.download(response.getBody(), response.getContentLength(),
+                        mContext.getCacheDir());
+                reusable = true;
+                return download;
             } catch (MalformedURLException e) {
                 Logger.e(e, "Invalid URL");
             } catch (IOException e) {
-                Logger.e(e, "Failed to init connection");
-            } finally {
-                if (urlConnection != null) {
-                    urlConnection.disconnect();
+                if (isCancelled()) {
+                    Logger.d("Download of " + imageUrl + " interrupted by cancel");
+                } else {
+                    Logger.e(e, "Failed to init connection");
                 }
-                try {
-                    if (in != null) {
-                        in.close();
+            } finally {
+                mResponse = null;
+                if (response != null) {
+                    // a fully read response goes back to the connection pool
+                    if (reusable) {
+                        response.close();
+                    } else {
+                        response.disconnect();
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
             }
 
             return null;
         }
 
-        private HttpURLConnection openConnection(String imageUrl) throws IOException {
-            final URL url = new URL(imageUrl);
-            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setDoInput(true);
-            urlConnection.setConnectTimeout(30 * 1000);
-            urlConnection.setReadTimeout(30 * 1000);
-            urlConnection.connect();
-            return urlConnection;
-        }
-
-        // TODO: 从本地一个二进制文件中获取加密密钥,可选的密钥管理方式还可以包括:
-        // 1. 将密钥获取规则打进so库,增加反编译难度
-        // 2. 使用隐写术获取密钥
-        // 3. 将密钥存在远程服务器上
-        private String peekCryptoPassword() {
+        private Bitmap decodeDownload(final DownloadedImage download, BitmapFactory.Options options) {
+            DisplayMetrics dm = mContext.getResources().getDisplayMetrics();
             try {
-                byte[] buffer = new byte[128];
-                InputStream is = mContext.getAssets().open("launcher");
-                is.read(buffer);
-                is.close();
-                return Crypto.toBase64(buffer);
+                return BitmapUtils.decode(new BitmapUtils.Source() {
+                    @Override
+                    public Bitmap decode(BitmapFactory.Options options) {
+                        return download.decode(options);
+                    }
+                }, dm.widthPixels, dm.heightPixels, null, mBitmapPool, options);
             } catch (IOException e) {
-                throw new RuntimeException("Failed to get passphase!");
+                Logger.e(e, "Failed to decode " + mUrl);
+                return null;
             }
         }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            SecureImageWorker that = (SecureImageWorker) o;
-
-            return mUrl != null ? mUrl.equals(that.mUrl) : that.mUrl == null;
-
-        }
-
-        @Override
-        public int hashCode() {
-            return mUrl != null ? mUrl.hashCode() : 0;
-        }
     }
 
 
+    /**
+     * Called on the main thread. Events that happen between two frames are delivered together
+     * in the next one.
+     */
     public interface NotifyCallback {
         int NOTIFY_FETCH_DONE = 1;
+        // one image of a prefetch batch was processed, bitmap is always null
+        int NOTIFY_PREFETCH_PROGRESS = 2;
+        // a small preview of a large image, NOTIFY_FETCH_DONE follows with the full image
+        int NOTIFY_THUMBNAIL_READY = 3;
 
         void onEvent(int code, String url, Bitmap bitmap);
     }
 
+    /**
+     * Registers {@code callback} for the events of every URL.
+     */
     public void registerNotifyCallback(NotifyCallback callback) {
-        mNotifyCallbacks.add(callback);
+        mDispatcher.register(callback);
     }
 
     public void removeNotifyCallback(NotifyCallback callback) {
-        mNotifyCallbacks.remove(callback);
+        mDispatcher.unregister(callback);
+    }
+
+    /**
+     * Registers {@code callback} for the events of {@code url} only, a view showing one image
+     * is not called for the others. Delivery is per URL, not per request: cancelling a
+     * {@link RequestHandle} doesn't stop the callback while other requests share the fetch, so
+     * remove it once its view is gone.
+     */
+    public void registerNotifyCallback(String url, NotifyCallback callback) {
+        mDispatcher.register(url, callback);
+    }
+
+    public void removeNotifyCallback(String url, NotifyCallback callback) {
+        mDispatcher.unregister(url, callback);
+    }
+
+    /**
+     * Events posted to callbacks, and the per-frame batches they were delivered in.
+     */
+    public long getNotifyEventCount() {
+        return mDispatcher.getEventCount();
+    }
+
+    public long getNotifyBatchCount() {
+        return mDispatcher.getBatchCount();
+    }
+
+    // thumbnails not delivered because the full image arrived in the same frame
+    public long getDroppedThumbnailCount() {
+        return mDispatcher.getDroppedThumbnailCount();
     }
 }
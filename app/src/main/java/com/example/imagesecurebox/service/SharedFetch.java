@@ -0,0 +1,116 @@
+package com.example.imagesecurebox.service;
+
+import android.graphics.Bitmap;
+
+import com.example.imagesecurebox.model.CacheKey;
+import com.example.imagesecurebox.model.VariantKey;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One pipeline execution for a size variant of a URL, shared by every request that joined it while it was in flight.
+ * The execution is cancelled once every {@link RequestHandle} on it has been released.
+ */
+class SharedFetch implements Future<Bitmap> {
+    private final VariantKey mVariant;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile Bitmap mBitmap;
+    private final AtomicInteger mHandles = new AtomicInteger(1);
+    private volatile boolean mCancelled;
+    private volatile Runnable mCancelListener;
+
+    SharedFetch(VariantKey variant) {
+        mVariant = variant;
+    }
+
+    VariantKey getVariant() {
+        return mVariant;
+    }
+
+    CacheKey getKey() {
+        return mVariant.getCacheKey();
+    }
+
+    String getUrl() {
+        return getKey().getUrl();
+    }
+
+    /**
+     * Adds a handle, fails if the execution was already cancelled.
+     */
+    boolean retain() {
+        while (true) {
+            int handles = mHandles.get();
+            if (handles == 0) {
+                return false;
+            }
+            if (mHandles.compareAndSet(handles, handles + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops a handle, returns true if that cancelled the execution.
+     */
+    boolean release() {
+        if (mHandles.decrementAndGet() != 0 || isDone()) {
+            return false;
+        }
+        mCancelled = true;
+        Runnable listener = mCancelListener;
+        if (listener != null) {
+            listener.run();
+        }
+        return true;
+    }
+
+    /**
+     * {@code listener} runs on the cancelling thread when the last handle is released.
+     */
+    void setCancelListener(Runnable listener) {
+        mCancelListener = listener;
+    }
+
+    void set(Bitmap bitmap) {
+        mBitmap = bitmap;
+        mDone.countDown();
+    }
+
+    // cancelled through RequestHandle only, so one caller can't stop a fetch others still wait for
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    /**
+     * Blocks until the shared execution finishes, null means the image could not be fetched.
+     */
+    @Override
+    public Bitmap get() throws InterruptedException {
+        mDone.await();
+        return mBitmap;
+    }
+
+    @Override
+    public Bitmap get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException("Fetching " + getUrl() + " timed out");
+        }
+        return mBitmap;
+    }
+}
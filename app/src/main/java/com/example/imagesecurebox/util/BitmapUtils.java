@@ -2,6 +2,13 @@ package com.example.imagesecurebox.util;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+
+import com.example.imagesecurebox.model.BitmapPool;
 
 import com.orhanobut.logger.Logger;
 
@@ -44,16 +51,163 @@ public class BitmapUtils {
         return inSampleSize;
     }
 
-    public static Bitmap decode(String filePath, int reqWidth, int reqHeight) {
-        final BitmapFactory.Options options = new BitmapFactory.Options();
+    public static Bitmap decode(final String filePath, int reqWidth, int reqHeight) {
+        return decode(filePath, reqWidth, reqHeight, null);
+    }
+
+    public static Bitmap decode(final String filePath, int reqWidth, int reqHeight, BitmapPool pool) {
+        try {
+            return decode(new Source() {
+                @Override
+                public Bitmap decode(BitmapFactory.Options options) {
+                    return BitmapFactory.decodeFile(filePath, options);
+                }
+            }, reqWidth, reqHeight, pool);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Bounds decode, then a sampled decode into a bitmap drawn from {@code pool} when it has a
+     * suitable one. Every call to {@link Source#decode} has to start from the beginning.
+     */
+    public static Bitmap decode(Source source, int reqWidth, int reqHeight, BitmapPool pool) throws IOException {
+        return decode(source, reqWidth, reqHeight, null, pool);
+    }
+
+    /**
+     * Same as above, decoding into {@code config} unless it is null.
+     */
+    public static Bitmap decode(Source source, int reqWidth, int reqHeight, Bitmap.Config config,
+                                BitmapPool pool) throws IOException {
+        return decode(source, reqWidth, reqHeight, config, pool, new BitmapFactory.Options());
+    }
+
+    /**
+     * Decodes with caller supplied {@code options}, which afterwards carry the source bounds,
+     * mime type and the sample size used.
+     */
+    public static Bitmap decode(Source source, int reqWidth, int reqHeight, Bitmap.Config config,
+                                BitmapPool pool, BitmapFactory.Options options) throws IOException {
+        options.inPreferredConfig = config;
         options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(filePath, options);
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        source.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
         options.inJustDecodeBounds = false;
-        if (options.inSampleSize <= 1) {
-            return BitmapFactory.decodeFile(filePath);
+        return decodeSampled(source, reqWidth, reqHeight, pool, options);
+    }
+
+    /**
+     * Skips the bounds pass when the source size is already known, e.g. from the disk cache
+     * index, so the source is opened and decoded only once.
+     */
+    public static Bitmap decodeWithBounds(Source source, int srcWidth, int srcHeight, int reqWidth, int reqHeight,
+                                          Bitmap.Config config, BitmapPool pool) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        options.outWidth = srcWidth;
+        options.outHeight = srcHeight;
+        return decodeSampled(source, reqWidth, reqHeight, pool, options);
+    }
+
+    private static Bitmap decodeSampled(Source source, int reqWidth, int reqHeight, BitmapPool pool,
+                                        BitmapFactory.Options options) throws IOException {
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        addInBitmapOptions(options, pool);
+
+        try {
+            return source.decode(options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap didn't fit after all, decode into a fresh one
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            Logger.w("Failed to decode into pooled bitmap");
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return source.decode(options);
+        }
+    }
+
+    /**
+     * Expects bounds and inSampleSize already set, makes the result poolable and picks a
+     * reusable bitmap for it.
+     */
+    public static void addInBitmapOptions(BitmapFactory.Options options, BitmapPool pool) {
+        options.inMutable = true;
+        if (pool == null || options.outWidth <= 0 || options.outHeight <= 0) {
+            return;
         }
-        return BitmapFactory.decodeFile(filePath, options);
+
+        int sampleSize = Math.max(1, options.inSampleSize);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && sampleSize != 1) {
+            // inBitmap can't be combined with sampling before KitKat
+            return;
+        }
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        options.inBitmap = pool.get(width, height, config);
+    }
+
+    /**
+     * Memory held by {@code bitmap}. From KitKat on a bitmap decoded into a larger pooled one
+     * keeps the whole allocation, which can be more than its pixels need.
+     */
+    public static int getAllocationByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    /**
+     * Scales {@code source} down so that it still covers {@code reqWidth} x {@code reqHeight},
+     * drawing into a pooled bitmap of {@code config} when there is one. Returns {@code source}
+     * itself if it is not larger than requested and already has that config.
+     */
+    public static Bitmap scaleDown(Bitmap source, int reqWidth, int reqHeight, Bitmap.Config config,
+                                   BitmapPool pool) {
+        Bitmap.Config sourceConfig = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        if (config == null) {
+            config = sourceConfig;
+        }
+        float scale = 1f;
+        if (reqWidth > 0 && reqHeight > 0) {
+            scale = Math.min(1f, Math.max((float) reqWidth / source.getWidth(), (float) reqHeight / source.getHeight()));
+        }
+        if (scale == 1f && config == sourceConfig) {
+            return source;
+        }
+
+        int width = Math.max(1, Math.round(source.getWidth() * scale));
+        int height = Math.max(1, Math.round(source.getHeight() * scale));
+        Bitmap target = pool != null ? pool.get(width, height, config) : null;
+        if (target != null
+                && (target.getWidth() != width || target.getHeight() != height || target.getConfig() != config)) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                target.reconfigure(width, height, config);
+            } else {
+                // can't be reshaped before KitKat, it goes back for a decode that fits it
+                pool.put(target);
+                target = null;
+            }
+        }
+        if (target == null) {
+            target = Bitmap.createBitmap(width, height, config);
+        } else {
+            target.eraseColor(Color.TRANSPARENT);
+        }
+        new Canvas(target).drawBitmap(source, null, new Rect(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        return target;
+    }
+
+    public interface Source {
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
     }
 
     public static void saveAsJpg(OutputStream outputStream, Bitmap bitmap, int rate) {
@@ -0,0 +1,61 @@
+package com.example.imagesecurebox.benchmark;
+
+import com.example.imagesecurebox.security.Crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the legacy text container pays on top of the cipher: Base64 in both directions plus the
+ * String round trip its API forces on image bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Base64Benchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"16384", "262144", "2097152"})
+    public int payloadSize;
+
+    private byte[] mPayload;
+    private String mEncoded;
+
+    @Setup
+    public void setUp() {
+        mPayload = new byte[payloadSize];
+        new Random(42).nextBytes(mPayload);
+        mEncoded = Crypto.toBase64(mPayload);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Crypto.toBase64(mPayload);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return Crypto.fromBase64(mEncoded);
+    }
+
+    @Benchmark
+    public byte[] stringRoundTrip() {
+        return mEncoded.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.imagesecurebox.benchmark;
+
+import com.example.imagesecurebox.security.CipherSuite;
+import com.example.imagesecurebox.security.Crypto;
+import com.example.imagesecurebox.security.KeyManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypt and decrypt cost per entry size, for the legacy text container (PBKDF2 per call,
+ * Base64 wrapped) and the authenticated segmented container the cache writes today, per suite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CryptoBenchmark {
+    private static final String PASSWORD = "benchmark";
+
+    // thumbnail, screen-sized image, large photo
+    @Param({"16384", "262144", "2097152"})
+    public int payloadSize;
+
+    @Param({"AES_GCM", "AES_CTR_HMAC_SHA256"})
+    public CipherSuite suite;
+
+    private byte[] mPayload;
+    private String mTextPayload;
+    private String mTextCiphertext;
+    private KeyManager mKeys;
+    private byte[] mBinaryCiphertext;
+
+    @Setup
+    public void setUp() {
+        mPayload = new byte[payloadSize];
+        new Random(42).nextBytes(mPayload);
+        // the legacy container only takes text, images were stored as Base64
+        mTextPayload = Crypto.toBase64(mPayload);
+        mTextCiphertext = Crypto.encrypt(mTextPayload, PASSWORD);
+
+        mKeys = new KeyManager(PASSWORD, Crypto.generateSalt(), KeyManager.DEFAULT_MASTER_ITERATIONS);
+        mKeys.setCipherSuite(suite);
+        mBinaryCiphertext = Crypto.encrypt(mPayload, mKeys);
+    }
+
+    @Benchmark
+    public String encryptText() {
+        return Crypto.encrypt(mTextPayload, PASSWORD);
+    }
+
+    @Benchmark
+    public String decryptPbkdf2() {
+        return Crypto.decryptPbkdf2(mTextCiphertext, PASSWORD);
+    }
+
+    @Benchmark
+    public byte[] encryptBinary() {
+        return Crypto.encrypt(mPayload, mKeys);
+    }
+
+    @Benchmark
+    public byte[] decryptBinary() {
+        return Crypto.decrypt(mBinaryCiphertext, mKeys);
+    }
+}
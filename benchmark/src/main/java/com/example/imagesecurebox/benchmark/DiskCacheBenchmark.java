@@ -0,0 +1,108 @@
+package com.example.imagesecurebox.benchmark;
+
+import com.example.imagesecurebox.model.CacheKey;
+import com.example.imagesecurebox.model.ImageDiskLruCache;
+import com.example.imagesecurebox.security.Crypto;
+import com.example.imagesecurebox.security.RecordCipher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Write and read throughput of the disk tier on a temp directory. Entries are opaque bytes here,
+ * only their small side records are encrypted. The cost of encrypting entries is measured
+ * separately by {@link CryptoBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiskCacheBenchmark {
+    // few enough to stay within the cache size at every payload size
+    private static final int READ_ENTRIES = 32;
+
+    @Param({"16384", "262144", "2097152"})
+    public int payloadSize;
+
+    private File mDirectory;
+    private ImageDiskLruCache mCache;
+    private byte[] mPayload;
+    private CacheKey[] mReadKeys;
+    private int mNextRead;
+    private int mNextWrite;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("disk-cache-benchmark", "");
+        mDirectory.delete();
+        mCache = new ImageDiskLruCache(mDirectory);
+        // the cache refuses writes until it can encrypt their side records
+        mCache.setRecordCipher(new RecordCipher(new SecretKeySpec(Crypto.generateIv(32), "AES")));
+
+        mPayload = new byte[payloadSize];
+        new Random(42).nextBytes(mPayload);
+        mReadKeys = new CacheKey[READ_ENTRIES];
+        for (int i = 0; i < READ_ENTRIES; i++) {
+            mReadKeys[i] = CacheKey.forUrl("http://example.com/read/" + i);
+            mCache.addToCache(mReadKeys[i], mPayload);
+        }
+        mCache.sync();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        deleteRecursively(mDirectory);
+    }
+
+    @Benchmark
+    public void write() {
+        // keys never repeat, every call is a fresh commit rather than an overwrite
+        mCache.addToCache(CacheKey.forUrl("http://example.com/write/" + mNextWrite++), mPayload);
+    }
+
+    @Benchmark
+    public byte[] readBytes() {
+        return mCache.loadFromCache(nextReadKey());
+    }
+
+    @Benchmark
+    public ByteBuffer readBuffer() {
+        return mCache.loadBufferFromCache(nextReadKey());
+    }
+
+    private CacheKey nextReadKey() {
+        mNextRead = (mNextRead + 1) % READ_ENTRIES;
+        return mReadKeys[mNextRead];
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
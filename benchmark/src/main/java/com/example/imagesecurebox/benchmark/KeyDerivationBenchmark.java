@@ -0,0 +1,46 @@
+package com.example.imagesecurebox.benchmark;
+
+import com.example.imagesecurebox.security.Crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+/**
+ * PBKDF2 cost per iteration count, to pick a master key iteration count that stays within the
+ * startup budget.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KeyDerivationBenchmark {
+    @Param({"1000", "10000", "50000", "100000"})
+    public int iterations;
+
+    private byte[] mSalt;
+
+    @Setup
+    public void setUp() {
+        mSalt = Crypto.generateSalt();
+    }
+
+    @Benchmark
+    public SecretKey deriveKeyPbkdf2() {
+        return Crypto.deriveKeyPbkdf2(mSalt, "benchmark", iterations);
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.imagesecurebox.benchmark;
+
+import com.example.imagesecurebox.model.CacheKey;
+import com.example.imagesecurebox.util.Md5;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache key hashing, run on every request before any tier is consulted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Md5Benchmark {
+    private static final String URL = "https://images.example.com/photos/2016/08/01/IMG_20160801_123456.jpg?w=1080";
+
+    @Benchmark
+    public String hashKeyFor() {
+        return Md5.hashKeyFor(URL);
+    }
+
+    @Benchmark
+    public CacheKey cacheKeyForUrl() {
+        return CacheKey.forUrl(URL);
+    }
+
+    // the digest is thread local, this should scale with the thread count
+    @Benchmark
+    @Threads(4)
+    public String hashKeyForContended() {
+        return Md5.hashKeyFor(URL);
+    }
+}
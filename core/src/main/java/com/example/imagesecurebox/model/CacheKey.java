@@ -0,0 +1,67 @@
+package com.example.imagesecurebox.model;
+
+import com.example.imagesecurebox.util.Md5;
+
+/**
+ * Cache key of one image, hashed once per request and shared by every cache tier. Equality and
+ * hashing use the precomputed 128-bit MD5 digest of the URL, the hex form names disk entries.
+ */
+public final class CacheKey {
+    private final String mUrl;
+    private final long mHigh;
+    private final long mLow;
+    private final String mHexString;
+
+    private CacheKey(String url, byte[] digest) {
+        mUrl = url;
+        mHigh = toLong(digest, 0);
+        mLow = toLong(digest, 8);
+        mHexString = Md5.bytesToHexString(digest);
+    }
+
+    public static CacheKey forUrl(String url) {
+        return new CacheKey(url, Md5.digest(url));
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Lowercase hex MD5 of the URL, valid as a DiskLruCache key.
+     */
+    public String getHexString() {
+        return mHexString;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey other = (CacheKey) o;
+        return mHigh == other.mHigh && mLow == other.mLow;
+    }
+
+    @Override
+    public int hashCode() {
+        // the digest is already uniformly distributed
+        return (int) mLow;
+    }
+
+    @Override
+    public String toString() {
+        return mHexString + " (" + mUrl + ")";
+    }
+}
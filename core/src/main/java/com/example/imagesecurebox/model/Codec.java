@@ -0,0 +1,24 @@
+package com.example.imagesecurebox.model;
+
+/**
+ * Format of the plaintext inside a cache entry, recorded in its {@link EntryMetadata}.
+ */
+public enum Codec {
+    PASSTHROUGH(0), WEBP(1), JPEG(2);
+
+    // persisted in the entry metadata, never reuse an id
+    public final int id;
+
+    Codec(int id) {
+        this.id = id;
+    }
+
+    public static Codec fromId(int id) {
+        for (Codec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.imagesecurebox.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Key=value lines stored next to an encrypted entry in its own DiskLruCache value, encrypted as a
+ * separate record. It describes how the entry was written and its bounds, never pixel data.
+ * Unknown keys are kept, so older code rewriting an entry doesn't drop fields added later.
+ */
+public class EntryMetadata {
+    private static final String CHARSET = "UTF-8";
+    private static final String KEY_CODEC = "codec";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_EXPIRES = "expires";
+    private static final String KEY_WIDTH = "width";
+    private static final String KEY_HEIGHT = "height";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_CREATED = "created";
+    private static final String KEY_ACCESS_COUNT = "access_count";
+    private static final String KEY_LAST_ACCESS = "last_access";
+    private static final String KEY_URL = "url";
+
+    private final Map<String, String> mValues = new LinkedHashMap<>();
+
+    public Codec getCodec() {
+        return Codec.fromId(getInt(KEY_CODEC, -1));
+    }
+
+    public EntryMetadata setCodec(Codec codec) {
+        return put(KEY_CODEC, String.valueOf(codec.id));
+    }
+
+    /**
+     * Validators of the response the entry was stored from, sent back when revalidating.
+     */
+    public String getETag() {
+        return mValues.get(KEY_ETAG);
+    }
+
+    public EntryMetadata setETag(String etag) {
+        return put(KEY_ETAG, etag);
+    }
+
+    public String getLastModified() {
+        return mValues.get(KEY_LAST_MODIFIED);
+    }
+
+    public EntryMetadata setLastModified(String lastModified) {
+        return put(KEY_LAST_MODIFIED, lastModified);
+    }
+
+    public boolean hasValidators() {
+        return getETag() != null || getLastModified() != null;
+    }
+
+    /**
+     * Wall clock time in ms after which the entry needs revalidation, 0 if the server gave no
+     * freshness information. Such entries are served as long as they are cached.
+     */
+    public long getExpires() {
+        return getLong(KEY_EXPIRES, 0);
+    }
+
+    public EntryMetadata setExpires(long expires) {
+        return put(KEY_EXPIRES, expires > 0 ? String.valueOf(expires) : null);
+    }
+
+    public boolean isStale(long now) {
+        long expires = getExpires();
+        return expires > 0 && now >= expires;
+    }
+
+    /**
+     * Size of the stored image in pixels, 0 if unknown.
+     */
+    public int getWidth() {
+        return getInt(KEY_WIDTH, 0);
+    }
+
+    public int getHeight() {
+        return getInt(KEY_HEIGHT, 0);
+    }
+
+    public EntryMetadata setSize(int width, int height) {
+        put(KEY_WIDTH, width > 0 ? String.valueOf(width) : null);
+        return put(KEY_HEIGHT, height > 0 ? String.valueOf(height) : null);
+    }
+
+    /**
+     * Length of the image before encryption, -1 if unknown.
+     */
+    public long getLength() {
+        return getLong(KEY_LENGTH, -1);
+    }
+
+    public EntryMetadata setLength(long length) {
+        return put(KEY_LENGTH, length >= 0 ? String.valueOf(length) : null);
+    }
+
+    public long getCreated() {
+        return getLong(KEY_CREATED, 0);
+    }
+
+    public EntryMetadata setCreated(long created) {
+        return put(KEY_CREATED, created > 0 ? String.valueOf(created) : null);
+    }
+
+    public int getAccessCount() {
+        return getInt(KEY_ACCESS_COUNT, 0);
+    }
+
+    public EntryMetadata setAccessCount(int accessCount) {
+        return put(KEY_ACCESS_COUNT, accessCount > 0 ? String.valueOf(accessCount) : null);
+    }
+
+    /**
+     * Wall clock time in ms of the last read, as of the last sync. 0 if never read.
+     */
+    public long getLastAccess() {
+        return getLong(KEY_LAST_ACCESS, 0);
+    }
+
+    public EntryMetadata setLastAccess(long lastAccess) {
+        return put(KEY_LAST_ACCESS, lastAccess > 0 ? String.valueOf(lastAccess) : null);
+    }
+
+    /**
+     * The URL the entry was stored from, null for entries written before it was recorded.
+     */
+    public String getUrl() {
+        return mValues.get(KEY_URL);
+    }
+
+    public EntryMetadata setUrl(String url) {
+        return put(KEY_URL, url);
+    }
+
+    protected long getLong(String key, long defaultValue) {
+        String value = mValues.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    protected int getInt(String key, int defaultValue) {
+        String value = mValues.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    protected EntryMetadata put(String key, String value) {
+        if (value == null) {
+            mValues.remove(key);
+        } else {
+            mValues.put(key, value);
+        }
+        return this;
+    }
+
+    public static EntryMetadata read(InputStream in) throws IOException {
+        EntryMetadata metadata = new EntryMetadata();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, CHARSET));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int separator = line.indexOf('=');
+            if (separator > 0) {
+                metadata.mValues.put(line.substring(0, separator), line.substring(separator + 1));
+            }
+        }
+        return metadata;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, CHARSET);
+        for (Map.Entry<String, String> entry : mValues.entrySet()) {
+            writer.write(entry.getKey());
+            writer.write('=');
+            writer.write(entry.getValue());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    @Override
+    public String toString() {
+        return "EntryMetadata" + mValues;
+    }
+}
@@ -0,0 +1,704 @@
+package com.example.imagesecurebox.model;
+
+import com.example.imagesecurebox.security.RecordCipher;
+import com.example.imagesecurebox.util.CoreLogger;
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by calvin on 8/1/16.
+ *
+ * Every entry carries an encrypted and authenticated side record ({@link EntryMetadata}) with its
+ * bounds, codec and length. The records are loaded into an in-memory index once the {@link RecordCipher} is set, so
+ * {@link #getImageInfo(CacheKey)} answers without touching the disk.
+ *
+ * An entry may have a thumbnail, a separate entry that is evicted on its own.
+ */
+
+public class ImageDiskLruCache {
+    private DiskLruCache mDiskLruCache;
+    public static final long DISK_CACHE_SIZE = 1024 * 1024 * 100;
+    public static final String DISK_CACHE_DIR = ".secure_image_cache_v2";
+    // entries without a metadata value, migrated on first open
+    public static final String LEGACY_DISK_CACHE_DIR = ".secure_image_cache";
+    public static final String KEY_PARAMS_FILE = "key_params";
+    // a small preview stored next to an entry, under the entry's key plus this suffix
+    public static final String THUMBNAIL_SUFFIX = "_t";
+    private static final int APP_VERSION = 1;
+    private static final int VALUE_COUNT = 2;
+    private static final int DISK_CACHE_INDEX = 0;
+    private static final int METADATA_INDEX = 1;
+    // below this size a single read is cheaper than setting up a mapping
+    public static final int MMAP_THRESHOLD = 1024 * 256;
+    // commits are flushed as a group, every N entries or after the interval, whichever comes first
+    private static final int FLUSH_EVERY_ENTRIES = 16;
+    private static final long FLUSH_INTERVAL_MS = 2000;
+    private File mDirectory;
+    private File mLegacyDir;
+    private ScheduledExecutorService mFlushExecutor;
+    private volatile RecordCipher mRecordCipher;
+    // hex key -> info, entries evicted by the LRU are dropped on their next miss
+    private final Map<String, ImageInfo> mIndex = new ConcurrentHashMap<>();
+
+    private final AtomicInteger mPendingCommits = new AtomicInteger();
+    private final AtomicLong mCommitCount = new AtomicLong();
+    private final AtomicLong mAbortCount = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mWriteNanos = new AtomicLong();
+    private final AtomicLong mFlushCount = new AtomicLong();
+
+    public ImageDiskLruCache(File diskCacheDir) {
+        this(diskCacheDir, null);
+    }
+
+    /**
+     * @param legacyDir a cache written before entries carried metadata, moved into this one if
+     *                  it exists. May be null. Its entries are copied once the record cipher is set.
+     */
+    public ImageDiskLruCache(File diskCacheDir, File legacyDir) {
+        if (!diskCacheDir.exists()) {
+            diskCacheDir.mkdirs();
+        }
+        mDirectory = diskCacheDir;
+
+        if (diskCacheDir.getUsableSpace() > DISK_CACHE_SIZE) {
+            try {
+                mDiskLruCache = DiskLruCache.open(diskCacheDir, APP_VERSION, VALUE_COUNT, DISK_CACHE_SIZE);
+            } catch (IOException e) {
+                CoreLogger.e("DiskLruCache create failed!");
+            }
+        }
+
+        if (mDiskLruCache != null) {
+            startFlusher();
+            if (legacyDir != null && legacyDir.isDirectory()) {
+                moveLegacyKeyParams(legacyDir);
+                mLegacyDir = legacyDir;
+            }
+        }
+
+    }
+
+    /**
+     * Loads the index from the side records and enables writes, only the first call has an
+     * effect. Reads the record of every entry, so call it off the main thread.
+     */
+    public synchronized void setRecordCipher(RecordCipher cipher) {
+        if (mRecordCipher != null || mDiskLruCache == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        String[] names = mDirectory.list();
+        for (String name : names != null ? names : new String[0]) {
+            if (name.endsWith("." + METADATA_INDEX)) {
+                loadIndexEntry(cipher, name.substring(0, name.length() - 2), new File(mDirectory, name));
+            }
+        }
+        mRecordCipher = cipher;
+        CoreLogger.d("Loaded " + mIndex.size() + " index entries in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+
+        if (mLegacyDir != null) {
+            migrateLegacyCache(mLegacyDir);
+            mLegacyDir = null;
+        }
+    }
+
+    private void loadIndexEntry(RecordCipher cipher, String hexKey, File file) {
+        try {
+            EntryMetadata metadata = decodeRecord(cipher, readFully(new FileInputStream(file)));
+            // entries written meanwhile are newer than their record on disk
+            if (metadata != null && !mIndex.containsKey(hexKey)) {
+                mIndex.put(hexKey, new ImageInfo(metadata));
+            }
+        } catch (IOException e) {
+            // evicted while listing
+        }
+    }
+
+    /**
+     * What the index knows about the entry, null if it is not cached or the index isn't loaded.
+     * May briefly report an entry the LRU just evicted.
+     */
+    public ImageInfo getImageInfo(CacheKey key) {
+        return mIndex.get(key.getHexString());
+    }
+
+    public ImageInfo getThumbnailInfo(CacheKey key) {
+        return mIndex.get(key.getHexString() + THUMBNAIL_SUFFIX);
+    }
+
+    /**
+     * Keys of the {@code count} most recently read images that are still fresh, most recent
+     * first. Entries stored without their URL are left out, empty until the index is loaded.
+     */
+    public List<CacheKey> getRecentlyUsed(int count) {
+        long now = System.currentTimeMillis();
+        List<ImageInfo> recent = new ArrayList<>();
+        for (Map.Entry<String, ImageInfo> entry : mIndex.entrySet()) {
+            ImageInfo info = entry.getValue();
+            if (info.url != null && !info.isStale(now) && !entry.getKey().endsWith(THUMBNAIL_SUFFIX)) {
+                recent.add(info);
+            }
+        }
+        Collections.sort(recent, new Comparator<ImageInfo>() {
+            @Override
+            public int compare(ImageInfo lhs, ImageInfo rhs) {
+                long l = lhs.getLastAccess();
+                long r = rhs.getLastAccess();
+                return l > r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        List<CacheKey> keys = new ArrayList<>();
+        for (int i = 0; i < Math.min(count, recent.size()); i++) {
+            keys.add(CacheKey.forUrl(recent.get(i).url));
+        }
+        return keys;
+    }
+
+    // The key parameters move over right away so the key can be opened before anything else
+    private void moveLegacyKeyParams(File legacyDir) {
+        File legacyParams = new File(legacyDir, KEY_PARAMS_FILE);
+        File params = new File(mDirectory, KEY_PARAMS_FILE);
+        if (legacyParams.exists() && !params.exists() && !legacyParams.renameTo(params)) {
+            CoreLogger.e("Failed to move key parameters, dropping the legacy cache");
+        }
+    }
+
+    // The entries are copied in the background and read as misses until then. Old entries were
+    // all WebP.
+    private void migrateLegacyCache(final File legacyDir) {
+        final boolean keepEntries = !new File(legacyDir, KEY_PARAMS_FILE).exists();
+
+        mFlushExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int migrated = 0;
+                DiskLruCache legacy = null;
+                try {
+                    legacy = DiskLruCache.open(legacyDir, APP_VERSION, 1, DISK_CACHE_SIZE);
+                    String[] names = keepEntries ? legacyDir.list() : new String[0];
+                    for (String name : names != null ? names : new String[0]) {
+                        if (name.endsWith(".0") && migrateEntry(legacy, name.substring(0, name.length() - 2))) {
+                            migrated++;
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    try {
+                        if (legacy != null) {
+                            legacy.delete();
+                        }
+                        legacyDir.delete();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                CoreLogger.d("Migrated " + migrated + " entries from the legacy cache");
+            }
+        });
+    }
+
+    private boolean migrateEntry(DiskLruCache legacy, String hexKey) throws IOException {
+        final DiskLruCache.Snapshot snapshot = legacy.get(hexKey);
+        if (snapshot == null) {
+            return false;
+        }
+        try {
+            return write(hexKey, new EntryWriter() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    InputStream in = snapshot.getInputStream(DISK_CACHE_INDEX);
+                    byte[] buffer = new byte[1024 * 8];
+                    int bytesRead;
+                    while ((bytesRead = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, bytesRead);
+                    }
+                }
+            }, new EntryMetadata().setCodec(Codec.WEBP));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public byte[] loadFromCache(CacheKey key) {
+        FileChannel channel = openChannelFromCache(key);
+        if (channel == null) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            readFully(channel, buffer);
+            return buffer.array();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(channel);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the entry as a read-only buffer: memory-mapped from {@link #MMAP_THRESHOLD} bytes
+     * on, below that read once into an exactly sized heap buffer.
+     */
+    public ByteBuffer loadBufferFromCache(CacheKey key) {
+        return loadBuffer(key.getHexString());
+    }
+
+    public ByteBuffer loadThumbnailFromCache(CacheKey key) {
+        return loadBuffer(key.getHexString() + THUMBNAIL_SUFFIX);
+    }
+
+    private ByteBuffer loadBuffer(String hexKey) {
+        FileInputStream in = openFromCache(hexKey);
+        FileChannel channel = in != null ? in.getChannel() : null;
+        if (channel == null) {
+            return null;
+        }
+
+        try {
+            long size = channel.size();
+            if (size >= MMAP_THRESHOLD) {
+                // the mapping stays valid after the channel is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            readFully(channel, buffer);
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(channel);
+        }
+        return null;
+    }
+
+    /**
+     * Streaming variant of {@link #loadBufferFromCache(CacheKey)}, the caller owns and must close
+     * the returned channel.
+     */
+    public FileChannel openChannelFromCache(CacheKey key) {
+        FileInputStream in = openFromCache(key);
+        return in != null ? in.getChannel() : null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) == -1) {
+                throw new IOException("Entry truncated at " + buffer.position() + " bytes");
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public boolean contains(CacheKey key) {
+        if (mDiskLruCache == null) {
+            return false;
+        }
+
+        try {
+            DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key.getHexString());
+            if (snapshot != null) {
+                snapshot.close();
+                return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Opens the entry for streaming reads, the caller owns and must close the returned stream.
+     */
+    public FileInputStream openFromCache(CacheKey key) {
+        return openFromCache(key.getHexString());
+    }
+
+    private FileInputStream openFromCache(String hexKey) {
+        if (mDiskLruCache == null) {
+            return null;
+        }
+
+        try {
+            DiskLruCache.Snapshot snapshot = mDiskLruCache.get(hexKey);
+            if (snapshot != null) {
+                ImageInfo info = mIndex.get(hexKey);
+                if (info != null) {
+                    info.recordAccess();
+                }
+                // the snapshot opened every value, only the image data is handed out
+                snapshot.getInputStream(METADATA_INDEX).close();
+                return (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
+            }
+            mIndex.remove(hexKey);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the metadata stored with the entry, or null if there is no entry or the record
+     * cipher isn't set yet.
+     */
+    public EntryMetadata loadMetadata(CacheKey key) {
+        return loadMetadata(key.getHexString());
+    }
+
+    private EntryMetadata loadMetadata(String hexKey) {
+        if (mDiskLruCache == null) {
+            return null;
+        }
+
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = mDiskLruCache.get(hexKey);
+            if (snapshot != null) {
+                return decodeRecord(mRecordCipher, readFully(snapshot.getInputStream(METADATA_INDEX)));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+        return null;
+    }
+
+    // Only authenticated records are read. Older plain text or unauthenticated ones fail like
+    // tampered records, their entries stay readable but lose their index information.
+    private static EntryMetadata decodeRecord(RecordCipher cipher, byte[] record) throws IOException {
+        if (cipher == null) {
+            return null;
+        }
+        return EntryMetadata.read(new ByteArrayInputStream(cipher.decrypt(record)));
+    }
+
+    private static byte[] encodeRecord(RecordCipher cipher, EntryMetadata metadata) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        metadata.writeTo(out);
+        return cipher.encrypt(out.toByteArray());
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            byte[] buffer = new byte[256];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    public void addToCache(CacheKey key, final byte[] data) {
+        addToCache(key, new EntryWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data);
+            }
+        });
+    }
+
+    public boolean addToCache(CacheKey key, EntryWriter writer) {
+        return addToCache(key, writer, new EntryMetadata());
+    }
+
+    public boolean addToCache(CacheKey key, EntryWriter writer, EntryMetadata metadata) {
+        if (key.getUrl() != null) {
+            metadata.setUrl(key.getUrl());
+        }
+        return write(key.getHexString(), writer, metadata);
+    }
+
+    public boolean addThumbnailToCache(CacheKey key, EntryWriter writer, EntryMetadata metadata) {
+        return write(key.getHexString() + THUMBNAIL_SUFFIX, writer, metadata);
+    }
+
+    private boolean write(String hexKey, EntryWriter writer, EntryMetadata metadata) {
+        RecordCipher cipher = mRecordCipher;
+        if (mDiskLruCache == null) {
+            return false;
+        }
+        if (cipher == null) {
+            CoreLogger.e("Record cipher not set, not caching " + hexKey);
+            return false;
+        }
+
+        long start = System.nanoTime();
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = mDiskLruCache.edit(hexKey);
+            if (editor != null) {
+                CountingOutputStream outputStream = new CountingOutputStream(
+                        new BufferedOutputStream(editor.newOutputStream(DISK_CACHE_INDEX)));
+                try {
+                    writer.writeTo(outputStream);
+                } finally {
+                    outputStream.close();
+                }
+                // the writer may fill in the length, the record goes last
+                if (metadata.getCreated() == 0) {
+                    metadata.setCreated(System.currentTimeMillis());
+                }
+                ImageInfo previous = mIndex.get(hexKey);
+                if (previous != null) {
+                    metadata.setAccessCount(previous.getAccessCount()).setLastAccess(previous.getLastAccess());
+                }
+                writeRecord(editor, cipher, metadata);
+                editor.commit();
+                editor = null;
+                mIndex.put(hexKey, new ImageInfo(metadata));
+                mBytesWritten.addAndGet(outputStream.getCount());
+                mCommitCount.incrementAndGet();
+                // the journal line is already written by commit(), only the flush is batched
+                if (mPendingCommits.incrementAndGet() >= FLUSH_EVERY_ENTRIES) {
+                    flushPending();
+                }
+                return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+                mAbortCount.incrementAndGet();
+            }
+            mWriteNanos.addAndGet(System.nanoTime() - start);
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites only the metadata of an existing entry, the image data is left untouched. Returns
+     * false if there is no such entry or it is being written.
+     */
+    public boolean updateMetadata(CacheKey key, EntryMetadata metadata) {
+        return updateMetadata(key.getHexString(), metadata);
+    }
+
+    private boolean updateMetadata(String hexKey, EntryMetadata metadata) {
+        RecordCipher cipher = mRecordCipher;
+        if (mDiskLruCache == null || cipher == null) {
+            return false;
+        }
+
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = mDiskLruCache.edit(hexKey);
+            if (editor == null) {
+                return false;
+            }
+            ImageInfo previous = mIndex.get(hexKey);
+            if (previous != null) {
+                metadata.setAccessCount(previous.getAccessCount()).setLastAccess(previous.getLastAccess());
+            }
+            writeRecord(editor, cipher, metadata);
+            // committing an edit of a new entry without image data throws, it was evicted meanwhile
+            editor.commit();
+            editor = null;
+            mIndex.put(hexKey, new ImageInfo(metadata));
+            if (mPendingCommits.incrementAndGet() >= FLUSH_EVERY_ENTRIES) {
+                flushPending();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            editor = null;
+            mIndex.remove(hexKey);
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+        }
+        return false;
+    }
+
+    private static void writeRecord(DiskLruCache.Editor editor, RecordCipher cipher, EntryMetadata metadata)
+            throws IOException {
+        OutputStream metadataStream = editor.newOutputStream(METADATA_INDEX);
+        try {
+            metadataStream.write(encodeRecord(cipher, metadata));
+        } finally {
+            metadataStream.close();
+        }
+    }
+
+    // Access counts and times live in memory, rewriting a record on every read would double the writes
+    private void persistAccessCounts() {
+        for (Map.Entry<String, ImageInfo> entry : mIndex.entrySet()) {
+            ImageInfo info = entry.getValue();
+            if (!info.isAccessCountDirty()) {
+                continue;
+            }
+            int accessCount = info.getAccessCount();
+            EntryMetadata metadata = loadMetadata(entry.getKey());
+            if (metadata != null && updateMetadata(entry.getKey(), metadata)) {
+                info.markPersisted(accessCount);
+            }
+        }
+    }
+
+    private void startFlusher() {
+        mFlushExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "secure-image-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mFlushExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushPending();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushPending() throws IOException {
+        if (mPendingCommits.getAndSet(0) > 0) {
+            mDiskLruCache.flush();
+            mFlushCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Durability point: writes back access counts, flushes all pending commits and forces the
+     * journal to the storage device.
+     */
+    public void sync() throws IOException {
+        if (mDiskLruCache == null) {
+            return;
+        }
+        persistAccessCounts();
+        mPendingCommits.set(0);
+        mDiskLruCache.flush();
+        mFlushCount.incrementAndGet();
+        FileOutputStream journal = new FileOutputStream(new File(mDirectory, "journal"), true);
+        try {
+            journal.getFD().sync();
+        } finally {
+            journal.close();
+        }
+    }
+
+    public WriteStats getWriteStats() {
+        return new WriteStats(mCommitCount.get(), mAbortCount.get(), mBytesWritten.get(),
+                mWriteNanos.get(), mFlushCount.get(), mPendingCommits.get());
+    }
+
+    /**
+     * Totals of the write path since the cache was opened. Throughput is bytes committed over
+     * the time spent inside {@link #addToCache(CacheKey, EntryWriter)}.
+     */
+    public static class WriteStats {
+        public final long commits;
+        public final long aborts;
+        public final long bytesWritten;
+        public final long writeNanos;
+        public final long flushes;
+        public final int pendingCommits;
+
+        WriteStats(long commits, long aborts, long bytesWritten, long writeNanos, long flushes, int pendingCommits) {
+            this.commits = commits;
+            this.aborts = aborts;
+            this.bytesWritten = bytesWritten;
+            this.writeNanos = writeNanos;
+            this.flushes = flushes;
+            this.pendingCommits = pendingCommits;
+        }
+
+        public float getBytesPerSecond() {
+            return writeNanos > 0 ? bytesWritten * 1e9f / writeNanos : 0f;
+        }
+
+        @Override
+        public String toString() {
+            return "DiskWrites{commits=" + commits + ", aborts=" + aborts + ", bytes=" + bytesWritten
+                    + ", flushes=" + flushes + ", pending=" + pendingCommits
+                    + ", throughput=" + Math.round(getBytesPerSecond() / 1024) + "KB/s}";
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
+    /**
+     * Streams an entry straight into the cache editor, so callers never need the whole
+     * value as one byte[].
+     */
+    public interface EntryWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.imagesecurebox.model;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory index entry of {@link ImageDiskLruCache}, what is known about a cached image without
+ * decrypting it. Everything but the access count is fixed when the entry is written.
+ */
+public class ImageInfo {
+    public final int width;
+    public final int height;
+    public final Codec codec;
+    // plaintext length of the image, -1 if unknown
+    public final long length;
+    public final long created;
+    public final long expires;
+    // null for entries stored before the URL was recorded
+    public final String url;
+
+    private final AtomicInteger mAccessCount;
+    // the count last written to disk, so sync() only rewrites entries that were read since
+    private volatile int mPersistedAccessCount;
+    private volatile long mLastAccess;
+
+    ImageInfo(EntryMetadata metadata) {
+        width = metadata.getWidth();
+        height = metadata.getHeight();
+        codec = metadata.getCodec();
+        length = metadata.getLength();
+        created = metadata.getCreated();
+        expires = metadata.getExpires();
+        url = metadata.getUrl();
+        mAccessCount = new AtomicInteger(metadata.getAccessCount());
+        mPersistedAccessCount = mAccessCount.get();
+        mLastAccess = Math.max(metadata.getLastAccess(), created);
+    }
+
+    /**
+     * Entries stored before the index existed have no bounds, they need a bounds decode.
+     */
+    public boolean hasBounds() {
+        return width > 0 && height > 0;
+    }
+
+    public boolean isStale(long now) {
+        return expires > 0 && now >= expires;
+    }
+
+    public int getAccessCount() {
+        return mAccessCount.get();
+    }
+
+    /**
+     * Time of the last read in ms, the time the entry was written if it was never read.
+     */
+    public long getLastAccess() {
+        return mLastAccess;
+    }
+
+    void recordAccess() {
+        mLastAccess = System.currentTimeMillis();
+        mAccessCount.incrementAndGet();
+    }
+
+    boolean isAccessCountDirty() {
+        return mAccessCount.get() != mPersistedAccessCount;
+    }
+
+    void markPersisted(int accessCount) {
+        mPersistedAccessCount = accessCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageInfo{" + width + "x" + height + ", codec=" + codec + ", length=" + length
+                + ", created=" + created + ", accessCount=" + getAccessCount() + "}";
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.imagesecurebox.net;
+
+import com.example.imagesecurebox.model.EntryMetadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens image requests over {@link HttpURLConnection} so that connections are kept alive:
+ * bodies are read to the end and closed, never disconnected, which hands the socket back to the
+ * platform's connection pool. Stale entries are revalidated with their stored validators.
+ */
+public class HttpFetcher {
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30 * 1000;
+    private static final int DRAIN_BUFFER_SIZE = 1024 * 8;
+
+    private volatile int mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile int mReadTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+
+    public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Sends the request and waits for the response headers. With {@code cached} metadata the
+     * request is conditional, a {@link Response#isNotModified()} response then has no body.
+     */
+    public Response open(String url, EntryMetadata cached) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setDoInput(true);
+        connection.setConnectTimeout(mConnectTimeoutMs);
+        connection.setReadTimeout(mReadTimeoutMs);
+        if (cached != null && cached.getETag() != null) {
+            connection.setRequestProperty("If-None-Match", cached.getETag());
+        }
+        if (cached != null && cached.getLastModified() != null) {
+            connection.setRequestProperty("If-Modified-Since", cached.getLastModified());
+        }
+        try {
+            return new Response(connection, connection.getResponseCode());
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Freshness lifetime of a response from Cache-Control, then Expires. Returns the absolute
+     * expiry time in ms, {@code now} for responses that must always be revalidated, 0 if unknown.
+     */
+    static long parseExpires(String cacheControl, long expiresHeader, long now) {
+        long maxAge = -1;
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-cache")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring("max-age=".length()).trim());
+                    } catch (NumberFormatException e) {
+                        // ignore the directive, fall back to Expires
+                    }
+                }
+            }
+        }
+        if (maxAge >= 0) {
+            return now + maxAge * 1000;
+        }
+        return expiresHeader > 0 ? expiresHeader : 0;
+    }
+
+    public static class Response {
+        private final HttpURLConnection mConnection;
+        private final int mCode;
+        private InputStream mBody;
+
+        Response(HttpURLConnection connection, int code) {
+            mConnection = connection;
+            mCode = code;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        public boolean isSuccessful() {
+            return mCode == HttpURLConnection.HTTP_OK;
+        }
+
+        public boolean isNotModified() {
+            return mCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        /**
+         * Advertised body length, -1 if the server did not send one.
+         */
+        public long getContentLength() {
+            return mConnection.getContentLength();
+        }
+
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = mConnection.getInputStream();
+            }
+            return mBody;
+        }
+
+        /**
+         * Stores the validators and the expiry of this response in {@code metadata}. A 304 may
+         * leave out validators that did not change, those are kept.
+         */
+        public EntryMetadata copyValidatorsTo(EntryMetadata metadata) {
+            String etag = mConnection.getHeaderField("ETag");
+            String lastModified = mConnection.getHeaderField("Last-Modified");
+            if (etag != null || !isNotModified()) {
+                metadata.setETag(etag);
+            }
+            if (lastModified != null || !isNotModified()) {
+                metadata.setLastModified(lastModified);
+            }
+            return metadata.setExpires(parseExpires(mConnection.getHeaderField("Cache-Control"),
+                    mConnection.getExpiration(), System.currentTimeMillis()));
+        }
+
+        /**
+         * Releases the connection for reuse. Whatever is left of the body, or the error body of
+         * an unsuccessful response, is read to the end first.
+         */
+        public void close() {
+            InputStream in = mBody;
+            try {
+                if (in == null) {
+                    in = mCode < HttpURLConnection.HTTP_BAD_REQUEST ? mConnection.getInputStream()
+                            : mConnection.getErrorStream();
+                }
+                if (in != null) {
+                    byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+                    while (in.read(buffer) != -1) {
+                        // drain
+                    }
+                    in.close();
+                }
+            } catch (IOException e) {
+                // the connection can't be reused, drop it
+                mConnection.disconnect();
+            }
+        }
+
+        /**
+         * Aborts the exchange, from any thread. The connection is not reused.
+         */
+        public void disconnect() {
+            mConnection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.imagesecurebox.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Decrypting, seekable view over an {@link AuthenticatedSegmentedCipher} container. A read
+ * verifies the whole segment its position falls into before handing out any of it, the last
+ * verified segment is kept so sequential reads open every segment once.
+ */
+public class AuthenticatedSegmentedChannel extends DecryptingChannel {
+    private final CipherSuite.Aead mAead;
+    private final int mSegmentSize;
+    private final byte[] mSealed;
+    private final byte[] mPlaintext;
+
+    // index of the segment in mPlaintext, -1 if none is
+    private long mSegmentIndex = -1;
+    private int mSegmentLength;
+
+    AuthenticatedSegmentedChannel(CipherSuite.Aead aead, int segmentSize, FileChannel file, long dataOffset) {
+        super(file, dataOffset);
+        mAead = aead;
+        mSegmentSize = segmentSize;
+        mSealed = new byte[segmentSize + CipherSuite.TAG_LENGTH];
+        mPlaintext = new byte[segmentSize];
+    }
+
+    /**
+     * Plaintext size, derived from the ciphertext length. Fails if the entry can't end in a last
+     * segment, its tail was cut off at a segment boundary.
+     */
+    @Override
+    public long size() throws IOException {
+        long ciphertextLength = mFile.size() - mDataOffset;
+        long remainder = ciphertextLength % mSealed.length;
+        if (ciphertextLength < 0 || remainder < CipherSuite.TAG_LENGTH) {
+            throw new IOException("Entry truncated");
+        }
+        return ciphertextLength / mSealed.length * mSegmentSize + remainder - CipherSuite.TAG_LENGTH;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (mPosition >= size()) {
+            return -1;
+        }
+
+        int total = 0;
+        while (dst.hasRemaining()) {
+            long index = mPosition / mSegmentSize;
+            if (index != mSegmentIndex) {
+                loadSegment(index);
+            }
+            int inSegment = (int) (mPosition % mSegmentSize);
+            if (inSegment >= mSegmentLength) {
+                break;
+            }
+            int count = Math.min(dst.remaining(), mSegmentLength - inSegment);
+            dst.put(mPlaintext, inSegment, count);
+            mPosition += count;
+            total += count;
+        }
+        return total;
+    }
+
+    private void loadSegment(long index) throws IOException {
+        mSegmentIndex = -1;
+        long offset = mDataOffset + index * mSealed.length;
+        int length = 0;
+        while (length < mSealed.length) {
+            int bytesRead = mFile.read(ByteBuffer.wrap(mSealed, length, mSealed.length - length), offset + length);
+            if (bytesRead == -1) {
+                break;
+            }
+            length += bytesRead;
+        }
+        boolean last = length < mSealed.length;
+        mSegmentLength = AuthenticatedSegmentedCipher.open(mAead, index, last, mSealed, 0, length, mPlaintext);
+        mSegmentIndex = index;
+    }
+}
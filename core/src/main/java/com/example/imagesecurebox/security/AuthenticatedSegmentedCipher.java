@@ -0,0 +1,241 @@
+package com.example.imagesecurebox.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Fixed-size plaintext segments, each stored as its ciphertext followed by a
+ * {@link CipherSuite#TAG_LENGTH} byte tag. A segment is verified before any of its plaintext is
+ * handed out, so a corrupted entry fails on its first bad segment instead of after a decode.
+ *
+ * The last segment is always shorter than the segment size, possibly empty, which tells it
+ * apart from a full segment without knowing the plaintext length up front.
+ */
+public class AuthenticatedSegmentedCipher {
+    private final CipherSuite mSuite;
+    private final SecretKey mKey;
+    private final byte[] mNonce;
+    private final int mSegmentSize;
+
+    public AuthenticatedSegmentedCipher(CipherSuite suite, SecretKey key, byte[] nonce, int segmentSize) {
+        if (nonce.length != SegmentedCipher.NONCE_LENGTH || segmentSize <= 0) {
+            throw new IllegalArgumentException("Invalid segment parameters");
+        }
+        mSuite = suite;
+        mKey = key;
+        mNonce = nonce;
+        mSegmentSize = segmentSize;
+    }
+
+    public CipherSuite getSuite() {
+        return mSuite;
+    }
+
+    /**
+     * Ciphertext length of {@code plaintextLength} bytes, without the container header.
+     */
+    public long getCiphertextLength(long plaintextLength) {
+        return plaintextLength + (plaintextLength / mSegmentSize + 1) * CipherSuite.TAG_LENGTH;
+    }
+
+    /**
+     * Decrypts a whole in-memory ciphertext, segment by segment.
+     */
+    public byte[] decrypt(byte[] data, int offset, int length) throws IOException {
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream(Math.max(0, length));
+        CipherSuite.Aead aead = mSuite.newAead(mKey, mNonce);
+        byte[] segment = new byte[mSegmentSize];
+        int chunkSize = mSegmentSize + CipherSuite.TAG_LENGTH;
+        long index = 0;
+        int position = 0;
+        while (true) {
+            int count = Math.min(chunkSize, length - position);
+            boolean last = count < chunkSize;
+            plaintext.write(segment, 0, open(aead, index++, last, data, offset + position, count, segment));
+            position += count;
+            if (last) {
+                return plaintext.toByteArray();
+            }
+        }
+    }
+
+    static int open(CipherSuite.Aead aead, long index, boolean last, byte[] in, int offset, int length,
+                            byte[] out) throws IOException {
+        if (length < CipherSuite.TAG_LENGTH) {
+            throw new IOException("Entry truncated in segment " + index);
+        }
+        try {
+            return aead.open(index, last, in, offset, length, out);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Segment " + index + " failed authentication", e);
+        }
+    }
+
+    /**
+     * Encrypts everything written to it into {@code out}. Only {@link OutputStream#close()}
+     * writes the last segment, it closes {@code out} as well.
+     */
+    public OutputStream newEncryptingStream(OutputStream out) {
+        return openEncryptingStream(out);
+    }
+
+    EncryptingStream openEncryptingStream(OutputStream out) {
+        return new EncryptingStream(out);
+    }
+
+    /**
+     * Sequential plaintext view over ciphertext read from {@code in}, failing with an IOException
+     * on the first segment that doesn't verify. Closing it closes {@code in}.
+     */
+    public InputStream newDecryptingStream(InputStream in) {
+        return new DecryptingStream(in);
+    }
+
+    /**
+     * Random access view over ciphertext stored in {@code file} starting at {@code dataOffset}.
+     */
+    public AuthenticatedSegmentedChannel newChannel(FileChannel file, long dataOffset) {
+        return new AuthenticatedSegmentedChannel(mSuite.newAead(mKey, mNonce), mSegmentSize, file, dataOffset);
+    }
+
+    class EncryptingStream extends OutputStream {
+        private final OutputStream mOut;
+        private final CipherSuite.Aead mAead = mSuite.newAead(mKey, mNonce);
+        private final byte[] mPlaintext = new byte[mSegmentSize];
+        private final byte[] mSealed = new byte[mSegmentSize + CipherSuite.TAG_LENGTH];
+        private int mCount;
+        private long mIndex;
+        private boolean mFinished;
+
+        EncryptingStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mFinished) {
+                throw new IOException("Stream already finished");
+            }
+            while (len > 0) {
+                int count = Math.min(len, mSegmentSize - mCount);
+                System.arraycopy(b, off, mPlaintext, mCount, count);
+                mCount += count;
+                off += count;
+                len -= count;
+                // a full segment is never the last one, the last is written by finish()
+                if (mCount == mSegmentSize) {
+                    seal(false);
+                }
+            }
+        }
+
+        private void seal(boolean last) throws IOException {
+            try {
+                mAead.seal(mIndex++, last, mPlaintext, 0, mCount, mSealed);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            mOut.write(mSealed, 0, mCount + CipherSuite.TAG_LENGTH);
+            mCount = 0;
+        }
+
+        /**
+         * Writes the last segment without closing {@code out}.
+         */
+        void finish() throws IOException {
+            if (!mFinished) {
+                seal(true);
+                mFinished = true;
+            }
+            mOut.flush();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                mOut.close();
+            }
+        }
+    }
+
+    private class DecryptingStream extends InputStream {
+        private final InputStream mIn;
+        private final CipherSuite.Aead mAead = mSuite.newAead(mKey, mNonce);
+        private final byte[] mSealed = new byte[mSegmentSize + CipherSuite.TAG_LENGTH];
+        private final byte[] mPlaintext = new byte[mSegmentSize];
+        private int mPosition;
+        private int mLimit;
+        private long mIndex;
+        private boolean mDone;
+
+        DecryptingStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mPosition == mLimit) {
+                if (mDone) {
+                    return -1;
+                }
+                nextSegment();
+            }
+            int count = Math.min(len, mLimit - mPosition);
+            System.arraycopy(mPlaintext, mPosition, b, off, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mLimit - mPosition;
+        }
+
+        private void nextSegment() throws IOException {
+            int length = 0;
+            while (length < mSealed.length) {
+                int bytesRead = mIn.read(mSealed, length, mSealed.length - length);
+                if (bytesRead == -1) {
+                    break;
+                }
+                length += bytesRead;
+            }
+            boolean last = length < mSealed.length;
+            mLimit = open(mAead, mIndex++, last, mSealed, 0, length, mPlaintext);
+            mPosition = 0;
+            mDone = last;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
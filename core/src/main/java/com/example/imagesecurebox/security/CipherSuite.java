@@ -0,0 +1,202 @@
+package com.example.imagesecurebox.security;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption of the segments of a cache entry. The suite id is stored in every
+ * entry header, so entries written with different suites can share a cache.
+ *
+ * Each segment is sealed with its index and whether it is the last one, segments can't be
+ * reordered, dropped or cut off without failing the tag check.
+ */
+public enum CipherSuite {
+    AES_GCM(1) {
+        @Override
+        Aead newAead(SecretKey entryKey, byte[] nonce) {
+            return new GcmAead(entryKey, nonce);
+        }
+    },
+    AES_CTR_HMAC_SHA256(2) {
+        @Override
+        Aead newAead(SecretKey entryKey, byte[] nonce) {
+            return new CtrHmacAead(entryKey, nonce);
+        }
+    };
+
+    public static final int TAG_LENGTH = 16;
+
+    public final int id;
+
+    CipherSuite(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Returns null for ids written by a newer version.
+     */
+    public static CipherSuite fromId(int id) {
+        for (CipherSuite suite : values()) {
+            if (suite.id == id) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    abstract Aead newAead(SecretKey entryKey, byte[] nonce);
+
+    /**
+     * Whether the device's providers implement this suite, older Android releases lack GCM.
+     */
+    public boolean isAvailable() {
+        try {
+            Aead aead = newAead(new SecretKeySpec(new byte[Crypto.KEY_LENGTH / 8], "AES"),
+                    new byte[SegmentedCipher.NONCE_LENGTH]);
+            byte[] sealed = new byte[TAG_LENGTH + 1];
+            aead.seal(0, true, new byte[1], 0, 1, sealed);
+            aead.open(0, true, sealed, 0, sealed.length, new byte[1]);
+            return true;
+        } catch (GeneralSecurityException | RuntimeException | LinkageError e) {
+            // GCMParameterSpec itself is missing before API 19
+            return false;
+        }
+    }
+
+    /**
+     * Seals and opens the segments of one entry. Not thread safe.
+     */
+    abstract static class Aead {
+        /**
+         * Writes the ciphertext of {@code length} bytes followed by the tag into {@code out}.
+         */
+        abstract void seal(long index, boolean last, byte[] in, int offset, int length, byte[] out)
+                throws GeneralSecurityException;
+
+        /**
+         * Verifies and decrypts a sealed segment into {@code out}, returns the plaintext length.
+         */
+        abstract int open(long index, boolean last, byte[] in, int offset, int length, byte[] out)
+                throws GeneralSecurityException;
+    }
+
+    // IV is nonce | segment index, the last flag goes into the associated data
+    private static class GcmAead extends Aead {
+        private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+        private final SecretKey mKey;
+        private final byte[] mNonce;
+        private Cipher mCipher;
+
+        GcmAead(SecretKey key, byte[] nonce) {
+            mKey = key;
+            mNonce = nonce;
+        }
+
+        private Cipher init(int mode, long index, boolean last) throws GeneralSecurityException {
+            if (mCipher == null) {
+                mCipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            }
+            byte[] iv = new byte[mNonce.length + 4];
+            System.arraycopy(mNonce, 0, iv, 0, mNonce.length);
+            putInt(iv, mNonce.length, (int) index);
+            mCipher.init(mode, mKey, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+            mCipher.updateAAD(new byte[]{(byte) (last ? 1 : 0)});
+            return mCipher;
+        }
+
+        @Override
+        void seal(long index, boolean last, byte[] in, int offset, int length, byte[] out)
+                throws GeneralSecurityException {
+            init(Cipher.ENCRYPT_MODE, index, last).doFinal(in, offset, length, out, 0);
+        }
+
+        @Override
+        int open(long index, boolean last, byte[] in, int offset, int length, byte[] out)
+                throws GeneralSecurityException {
+            return init(Cipher.DECRYPT_MODE, index, last).doFinal(in, offset, length, out, 0);
+        }
+    }
+
+    // Encrypt-then-MAC: the segmented AES-CTR keystream, HMAC over nonce | index | last | ciphertext.
+    // Encryption and MAC keys are expanded from the entry key.
+    private static class CtrHmacAead extends Aead {
+        private static final String MAC_ALGORITHM = "HmacSHA256";
+        private static final byte[] ENCRYPTION_KEY_INFO = {'I', 'S', 'B', '-', 'c', 't', 'r'};
+        private static final byte[] MAC_KEY_INFO = {'I', 'S', 'B', '-', 'h', 'm', 'a', 'c'};
+
+        private final SegmentedCipher mCipher;
+        private final byte[] mNonce;
+        private final Mac mMac;
+        private final byte[] mHeader;
+
+        CtrHmacAead(SecretKey entryKey, byte[] nonce) {
+            byte[] keyBytes = entryKey.getEncoded();
+            SecretKey encryptionKey = new SecretKeySpec(
+                    Crypto.hkdfSha256(keyBytes, nonce, ENCRYPTION_KEY_INFO, Crypto.KEY_LENGTH / 8), "AES");
+            // any segment size works, every segment starts a fresh counter
+            mCipher = new SegmentedCipher(encryptionKey, nonce, SegmentedCipher.BLOCK_SIZE);
+            mNonce = nonce;
+            mHeader = new byte[nonce.length + 5];
+            try {
+                mMac = Mac.getInstance(MAC_ALGORITHM);
+                mMac.init(new SecretKeySpec(Crypto.hkdfSha256(keyBytes, nonce, MAC_KEY_INFO, 32), MAC_ALGORITHM));
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private Cipher cipher(int mode, long index) {
+            // counter block nonce | index | 0
+            return mCipher.newCipher(mode, index * SegmentedCipher.BLOCK_SIZE);
+        }
+
+        private byte[] tag(long index, boolean last, byte[] ciphertext, int offset, int length) {
+            System.arraycopy(mNonce, 0, mHeader, 0, mNonce.length);
+            putInt(mHeader, mNonce.length, (int) index);
+            mHeader[mHeader.length - 1] = (byte) (last ? 1 : 0);
+            mMac.update(mHeader);
+            mMac.update(ciphertext, offset, length);
+            return mMac.doFinal();
+        }
+
+        @Override
+        void seal(long index, boolean last, byte[] in, int offset, int length, byte[] out)
+                throws GeneralSecurityException {
+            cipher(Cipher.ENCRYPT_MODE, index).doFinal(in, offset, length, out, 0);
+            System.arraycopy(tag(index, last, out, 0, length), 0, out, length, TAG_LENGTH);
+        }
+
+        @Override
+        int open(long index, boolean last, byte[] in, int offset, int length, byte[] out)
+                throws GeneralSecurityException {
+            int dataLength = length - TAG_LENGTH;
+            if (dataLength < 0) {
+                throw new BadPaddingException("Segment too short");
+            }
+            byte[] expected = tag(index, last, in, offset, dataLength);
+            byte[] actual = new byte[TAG_LENGTH];
+            System.arraycopy(in, offset + dataLength, actual, 0, TAG_LENGTH);
+            byte[] truncated = new byte[TAG_LENGTH];
+            System.arraycopy(expected, 0, truncated, 0, TAG_LENGTH);
+            // constant time compare, AEADBadTagException only exists from API 19
+            if (!MessageDigest.isEqual(truncated, actual)) {
+                throw new BadPaddingException("Segment " + index + " failed authentication");
+            }
+            return cipher(Cipher.DECRYPT_MODE, index).doFinal(in, offset, dataLength, out, 0);
+        }
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.imagesecurebox.security;
+
+import com.example.imagesecurebox.util.CoreLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Picks the fastest {@link CipherSuite} the device's providers implement by timing a round trip
+ * of a few segments through each. Runs once per install, {@link KeyManager} keeps the result.
+ */
+public class CipherSuiteSelector {
+    private static final int SEGMENT_SIZE = SegmentedCipher.DEFAULT_SEGMENT_SIZE;
+    // a few segments, enough to get past per-call setup without costing more than a few ms
+    private static final int SAMPLE_SIZE = SEGMENT_SIZE * 2;
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURED_ROUNDS = 3;
+    // the suite every provider implements, HMAC and CTR have been there since API 1
+    public static final CipherSuite FALLBACK = CipherSuite.AES_CTR_HMAC_SHA256;
+
+    private CipherSuiteSelector() {
+    }
+
+    public static CipherSuite selectFastest() {
+        byte[] sample = Crypto.generateIv(SAMPLE_SIZE);
+        SecretKey key = new SecretKeySpec(Crypto.generateIv(Crypto.KEY_LENGTH / 8), "AES");
+        byte[] nonce = Crypto.generateIv(SegmentedCipher.NONCE_LENGTH);
+
+        CipherSuite fastest = null;
+        long fastestNanos = Long.MAX_VALUE;
+        StringBuilder results = new StringBuilder();
+        for (CipherSuite suite : CipherSuite.values()) {
+            if (!suite.isAvailable()) {
+                results.append(suite).append("=unavailable ");
+                continue;
+            }
+            try {
+                AuthenticatedSegmentedCipher cipher = new AuthenticatedSegmentedCipher(suite, key, nonce, SEGMENT_SIZE);
+                for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                    roundTrip(cipher, sample);
+                }
+                // the best round, scheduling noise only ever adds time
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                    long start = System.nanoTime();
+                    roundTrip(cipher, sample);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                results.append(suite).append('=').append(best / 1000).append("us ");
+                if (best < fastestNanos) {
+                    fastest = suite;
+                    fastestNanos = best;
+                }
+            } catch (IOException e) {
+                results.append(suite).append("=failed ");
+            }
+        }
+        if (fastest == null) {
+            fastest = FALLBACK;
+        }
+        CoreLogger.d("Cipher suites: " + results + "-> " + fastest);
+        return fastest;
+    }
+
+    private static void roundTrip(AuthenticatedSegmentedCipher cipher, byte[] sample) throws IOException {
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream((int) cipher.getCiphertextLength(sample.length));
+        OutputStream out = cipher.newEncryptingStream(sealed);
+        out.write(sample);
+        out.close();
+
+        InputStream in = cipher.newDecryptingStream(new ByteArrayInputStream(sealed.toByteArray()));
+        byte[] buffer = new byte[SEGMENT_SIZE];
+        while (in.read(buffer) != -1) {
+            // decrypt only
+        }
+        in.close();
+    }
+}
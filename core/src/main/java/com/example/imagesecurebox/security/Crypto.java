@@ -0,0 +1,448 @@
+package com.example.imagesecurebox.security;
+
+import com.example.imagesecurebox.util.Base64;
+import com.example.imagesecurebox.util.CoreLogger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Created by calvin on 8/1/16.
+ * http://android-developers.blogspot.com/2016/06/security-crypto-provider-deprecated-in.html
+ * https://nelenkov.blogspot.com/2012/04/using-password-based-encryption-on.html
+ */
+
+public class Crypto {
+    public static final String PBKDF2_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+
+    private static String DELIMITER = "]";
+
+    static final int KEY_LENGTH = 256;
+    // minimum values recommended by PKCS#5, increase as necessary
+    private static int ITERATION_COUNT = 1000;
+    private static final int PKCS5_SALT_LENGTH = 8;
+
+    private static final String HKDF_MAC_ALGORITHM = "HmacSHA256";
+
+    // Binary container: MAGIC | VERSION | salt | iv or nonce | [segment size] | raw ciphertext.
+    // The leading 0x89 can never appear in the Base64 text of the legacy format.
+    private static final byte[] MAGIC = {(byte) 0x89, 'I', 'S', 'B'};
+    // version 1 salts PBKDF2 per entry, version 2 expands the entry key from the master key
+    private static final byte VERSION_PBKDF2_CBC = 1;
+    private static final byte VERSION_HKDF_CBC = 2;
+    // version 3 splits the ciphertext into independently decryptable AES-CTR segments
+    private static final byte VERSION_HKDF_SEGMENTED = 3;
+    // version 4 authenticates every segment, with the cipher suite id following the version
+    private static final byte VERSION_AUTHENTICATED = 4;
+    private static final int ENTRY_SALT_LENGTH = 16;
+    private static final int IV_LENGTH = 16;
+    private static final int AUTHENTICATED_HEADER_LENGTH = MAGIC.length + 2 + ENTRY_SALT_LENGTH
+            + SegmentedCipher.NONCE_LENGTH + 4;
+    private static final int STREAM_CHUNK_SIZE = 1024 * 8;
+
+    private static SecureRandom mRandom = new SecureRandom();
+
+    private Crypto() {
+    }
+
+    // https://helpdesk.lastpass.com/account-settings/general/password-iterations-pbkdf2/
+    // https://en.wikipedia.org/wiki/PBKDF2
+    public static SecretKey deriveKeyPbkdf2(byte[] salt, String password) {
+        return deriveKeyPbkdf2(salt, password, ITERATION_COUNT);
+    }
+
+    public static SecretKey deriveKeyPbkdf2(byte[] salt, String password, int iterations) {
+        try {
+            long start = System.currentTimeMillis();
+            KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt,
+                    iterations, KEY_LENGTH);
+            SecretKeyFactory keyFactory = SecretKeyFactory
+                    .getInstance(PBKDF2_DERIVATION_ALGORITHM);
+            byte[] keyBytes = keyFactory.generateSecret(keySpec).getEncoded();
+
+            SecretKey result = new SecretKeySpec(keyBytes, "AES");
+            long elapsed = System.currentTimeMillis() - start;
+            CoreLogger.d(String.format("PBKDF2 key derivation took %d [ms].",
+                    elapsed));
+
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // https://tools.ietf.org/html/rfc5869
+    public static byte[] hkdfSha256(byte[] ikm, byte[] salt, byte[] info, int length) {
+        try {
+            Mac mac = Mac.getInstance(HKDF_MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(salt, HKDF_MAC_ALGORITHM));
+            byte[] prk = mac.doFinal(ikm);
+
+            mac.init(new SecretKeySpec(prk, HKDF_MAC_ALGORITHM));
+            byte[] result = new byte[length];
+            byte[] block = new byte[0];
+            int offset = 0;
+            for (int counter = 1; offset < length; counter++) {
+                mac.update(block);
+                mac.update(info);
+                mac.update((byte) counter);
+                block = mac.doFinal();
+                int count = Math.min(block.length, length - offset);
+                System.arraycopy(block, 0, result, offset, count);
+                offset += count;
+            }
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static byte[] generateIv(int length) {
+        byte[] b = new byte[length];
+        mRandom.nextBytes(b);
+
+        return b;
+    }
+
+    public static byte[] generateSalt() {
+        byte[] b = new byte[PKCS5_SALT_LENGTH];
+        mRandom.nextBytes(b);
+
+        return b;
+    }
+
+    // 大文件可分块进行加密,或者只加密文件的部分,以加快加解密时间
+    public static String encrypt(String plaintext, String password) {
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            byte[] salt = Crypto.generateSalt();
+            SecretKey key = Crypto.deriveKeyPbkdf2(salt, password);
+
+            byte[] iv = generateIv(cipher.getBlockSize());
+            IvParameterSpec ivParams = new IvParameterSpec(iv);
+            cipher.init(Cipher.ENCRYPT_MODE, key, ivParams);
+            byte[] cipherText = cipher.doFinal(plaintext.getBytes("UTF-8"));
+
+            if (salt != null) {
+                return String.format("%s%s%s%s%s", toBase64(salt), DELIMITER,
+                        toBase64(iv), DELIMITER, toBase64(cipherText));
+            }
+
+            return String.format("%s%s%s", toBase64(iv), DELIMITER,
+                    toBase64(cipherText));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static byte[] encrypt(byte[] plaintext, KeyManager keys) {
+        try {
+            int segments = plaintext.length / SegmentedCipher.DEFAULT_SEGMENT_SIZE + 1;
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(AUTHENTICATED_HEADER_LENGTH + plaintext.length
+                    + segments * CipherSuite.TAG_LENGTH);
+            encrypt(plaintext, keys, bos);
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the binary container for {@code plaintext} straight into {@code out},
+     * ciphertext is produced chunk by chunk so no full-size copy is kept on the heap.
+     */
+    public static void encrypt(byte[] plaintext, KeyManager keys, OutputStream out) throws IOException {
+        AuthenticatedSegmentedCipher.EncryptingStream encrypting = openEncryptingStream(out, keys);
+        encrypting.write(plaintext);
+        encrypting.finish();
+    }
+
+    /**
+     * Writes the container header to {@code out} and returns a stream that encrypts everything
+     * written to it as authenticated segments, with the suite chosen by {@code keys}. The last
+     * segment is only written by closing the stream, which closes {@code out} as well.
+     */
+    public static OutputStream newEncryptingStream(OutputStream out, KeyManager keys) throws IOException {
+        return openEncryptingStream(out, keys);
+    }
+
+    private static AuthenticatedSegmentedCipher.EncryptingStream openEncryptingStream(OutputStream out,
+                                                                                      KeyManager keys) throws IOException {
+        CipherSuite suite = keys.getCipherSuite();
+        byte[] salt = generateIv(ENTRY_SALT_LENGTH);
+        byte[] nonce = generateIv(SegmentedCipher.NONCE_LENGTH);
+        int segmentSize = SegmentedCipher.DEFAULT_SEGMENT_SIZE;
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.write(MAGIC);
+        header.writeByte(VERSION_AUTHENTICATED);
+        header.writeByte(suite.id);
+        header.write(salt);
+        header.write(nonce);
+        header.writeInt(segmentSize);
+        AuthenticatedSegmentedCipher cipher = new AuthenticatedSegmentedCipher(suite, keys.getEntryKey(salt),
+                nonce, segmentSize);
+        return cipher.openEncryptingStream(out);
+    }
+
+    public static boolean isBinaryFormat(byte[] data) {
+        if (data == null || data.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decrypts a whole entry in memory. Entries in the legacy text format are still understood,
+     * their Base64 payload wrapping is removed as well. Throws IllegalArgumentException for an
+     * authenticated entry that fails verification.
+     */
+    public static byte[] decrypt(byte[] data, KeyManager keys) {
+        if (!isBinaryFormat(data)) {
+            try {
+                String[] fields = splitLegacy(new String(data, "UTF-8"));
+                byte[] salt = fromBase64(fields[0]);
+                return fromBase64(decrypt(fromBase64(fields[2]), keys.getLegacyKey(salt), fromBase64(fields[1])));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        try {
+            Header header = Header.read(new DataInputStream(new ByteArrayInputStream(data)));
+            int offset = header.length;
+            if (header.version == VERSION_AUTHENTICATED) {
+                return decryptAuthenticated(header.newAuthenticatedCipher(keys), data, offset);
+            }
+            if (header.version == VERSION_HKDF_SEGMENTED) {
+                return header.newSegmentedCipher(keys).decrypt(data, offset, data.length - offset);
+            }
+            return header.newCbcCipher(keys).doFinal(data, offset, data.length - offset);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid encrypted data format");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] decryptAuthenticated(AuthenticatedSegmentedCipher cipher, byte[] data, int offset) {
+        try {
+            return cipher.decrypt(data, offset, data.length - offset);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Opens a decrypting stream over an entry without loading it into memory. Segmented entries
+     * and the CBC container versions are streamed, only legacy text entries are buffered.
+     * Reading an authenticated entry fails with an IOException at the first corrupted segment.
+     */
+    public static InputStream newDecryptingStream(InputStream in, KeyManager keys) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in, STREAM_CHUNK_SIZE);
+        }
+        in.mark(MAGIC.length);
+        Header header = Header.read(new DataInputStream(in));
+        if (header == null) {
+            in.reset();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                bos.write(buffer, 0, bytesRead);
+            }
+            in.close();
+            return new ByteArrayInputStream(decrypt(bos.toByteArray(), keys));
+        }
+
+        if (header.version == VERSION_AUTHENTICATED) {
+            return header.newAuthenticatedCipher(keys).newDecryptingStream(in);
+        }
+        if (header.version == VERSION_HKDF_SEGMENTED) {
+            return header.newSegmentedCipher(keys).newDecryptingStream(in);
+        }
+        try {
+            return new CipherInputStream(in, header.newCbcCipher(keys));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Random access view over a segmented entry, positioned at the first plaintext byte.
+     * Authenticated entries verify each segment a read touches and fail with an IOException on
+     * a corrupted one.
+     */
+    public static DecryptingChannel openChannel(FileChannel file, KeyManager keys) throws IOException {
+        Header header = Header.read(new DataInputStream(Channels.newInputStream(file.position(0))));
+        if (header == null) {
+            throw new IllegalArgumentException("Not a segmented entry");
+        }
+        if (header.version == VERSION_AUTHENTICATED) {
+            return header.newAuthenticatedCipher(keys).newChannel(file, header.length);
+        }
+        if (header.version == VERSION_HKDF_SEGMENTED) {
+            return header.newSegmentedCipher(keys).newChannel(file, header.length);
+        }
+        throw new IllegalArgumentException("Not a segmented entry");
+    }
+
+    private static class Header {
+        byte version;
+        CipherSuite suite;
+        byte[] salt;
+        byte[] iv;
+        int segmentSize;
+        int length;
+
+        // Returns null when the data is not in the binary container format at all.
+        static Header read(DataInputStream in) throws IOException {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                return null;
+            }
+
+            Header header = new Header();
+            header.version = in.readByte();
+            int suiteLength = 0;
+            switch (header.version) {
+                case VERSION_PBKDF2_CBC:
+                    header.salt = new byte[PKCS5_SALT_LENGTH];
+                    header.iv = new byte[IV_LENGTH];
+                    break;
+                case VERSION_HKDF_CBC:
+                    header.salt = new byte[ENTRY_SALT_LENGTH];
+                    header.iv = new byte[IV_LENGTH];
+                    break;
+                case VERSION_HKDF_SEGMENTED:
+                    header.salt = new byte[ENTRY_SALT_LENGTH];
+                    header.iv = new byte[SegmentedCipher.NONCE_LENGTH];
+                    break;
+                case VERSION_AUTHENTICATED:
+                    int suiteId = in.readByte();
+                    header.suite = CipherSuite.fromId(suiteId);
+                    if (header.suite == null) {
+                        throw new IOException("Unknown cipher suite " + suiteId);
+                    }
+                    suiteLength = 1;
+                    header.salt = new byte[ENTRY_SALT_LENGTH];
+                    header.iv = new byte[SegmentedCipher.NONCE_LENGTH];
+                    break;
+                default:
+                    throw new IOException("Unknown container version " + header.version);
+            }
+            in.readFully(header.salt);
+            in.readFully(header.iv);
+            header.length = MAGIC.length + 1 + suiteLength + header.salt.length + header.iv.length;
+            if (header.version == VERSION_HKDF_SEGMENTED || header.version == VERSION_AUTHENTICATED) {
+                header.segmentSize = in.readInt();
+                header.length += 4;
+            }
+            return header;
+        }
+
+        SecretKey key(KeyManager keys) {
+            return version == VERSION_PBKDF2_CBC ? keys.getLegacyKey(salt) : keys.getEntryKey(salt);
+        }
+
+        Cipher newCbcCipher(KeyManager keys) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, key(keys), new IvParameterSpec(iv));
+            return cipher;
+        }
+
+        SegmentedCipher newSegmentedCipher(KeyManager keys) {
+            return new SegmentedCipher(key(keys), iv, segmentSize);
+        }
+
+        AuthenticatedSegmentedCipher newAuthenticatedCipher(KeyManager keys) {
+            return new AuthenticatedSegmentedCipher(suite, key(keys), iv, segmentSize);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuffer buff = new StringBuffer();
+        for (byte b : bytes) {
+            buff.append(String.format("%02X", b));
+        }
+
+        return buff.toString();
+    }
+
+    public static String toBase64(byte[] bytes) {
+        return Base64.encodeToString(bytes);
+    }
+
+    public static byte[] fromBase64(String base64) {
+        return Base64.decode(base64);
+    }
+
+    private static String decrypt(byte[] cipherBytes, SecretKey key, byte[] iv) {
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            IvParameterSpec ivParams = new IvParameterSpec(iv);
+            cipher.init(Cipher.DECRYPT_MODE, key, ivParams);
+            CoreLogger.d("Cipher IV: " + toHex(cipher.getIV()));
+            byte[] plaintext = cipher.doFinal(cipherBytes);
+            String plainrStr = new String(plaintext, "UTF-8");
+
+            return plainrStr;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String decryptPbkdf2(String ciphertext, String password) {
+        String[] fields = splitLegacy(ciphertext);
+
+        byte[] salt = fromBase64(fields[0]);
+        byte[] iv = fromBase64(fields[1]);
+        byte[] cipherBytes = fromBase64(fields[2]);
+        SecretKey key = deriveKeyPbkdf2(salt, password);
+
+        return decrypt(cipherBytes, key, iv);
+    }
+
+    private static String[] splitLegacy(String ciphertext) {
+        String[] fields = ciphertext.split(DELIMITER);
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("Invalid encypted text format");
+        }
+        return fields;
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.example.imagesecurebox.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decrypting, seekable view over the ciphertext of an entry stored in a file, as returned by
+ * {@link Crypto#openChannel(FileChannel, KeyManager)}. Reads use positional file access, so
+ * memory use does not depend on the image size.
+ *
+ * Mirrors the SeekableByteChannel contract, which is only available from API 24.
+ */
+public abstract class DecryptingChannel implements ReadableByteChannel {
+    final FileChannel mFile;
+    final long mDataOffset;
+    long mPosition;
+
+    DecryptingChannel(FileChannel file, long dataOffset) {
+        mFile = file;
+        mDataOffset = dataOffset;
+    }
+
+    public long position() {
+        return mPosition;
+    }
+
+    public DecryptingChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        mPosition = newPosition;
+        return this;
+    }
+
+    /**
+     * Plaintext size of the entry.
+     */
+    public abstract long size() throws IOException;
+
+    /**
+     * Sequential stream over the plaintext, starting at the current position.
+     */
+    public InputStream newInputStream() {
+        return Channels.newInputStream(this);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mFile.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.imagesecurebox.security;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives the per-install master key once and hands out cheap per-entry keys.
+ *
+ * The expensive PBKDF2 run happens only for the master key (salted with a random per-install
+ * salt), every entry key is then expanded from it with HKDF. Entries written before the master
+ * key existed still need a PBKDF2 run per salt, those keys are kept in a small LRU map.
+ *
+ * The parameters file also records the {@link CipherSuite} new entries are written with.
+ */
+public class KeyManager {
+    // Master key is derived once per process, so it can afford far more than PKCS#5's minimum.
+    public static final int DEFAULT_MASTER_ITERATIONS = 10000;
+
+    private static final int PARAMS_VERSION = 1;
+    private static final int INSTALL_SALT_LENGTH = 16;
+    private static final int MAX_LEGACY_KEYS = 32;
+    private static final byte[] ENTRY_KEY_INFO = {'I', 'S', 'B', '-', 'e', 'n', 't', 'r', 'y'};
+    private static final byte[] INDEX_KEY_INFO = {'I', 'S', 'B', '-', 'i', 'n', 'd', 'e', 'x'};
+
+    private final String mPassword;
+    private final byte[] mInstallSalt;
+    private final int mIterations;
+    private final File mParamsFile;
+    private volatile CipherSuite mCipherSuite;
+    private volatile SecretKey mMasterKey;
+    private volatile SecretKey mIndexKey;
+
+    private final Map<String, SecretKey> mLegacyKeys = new LinkedHashMap<String, SecretKey>(MAX_LEGACY_KEYS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+            return size() > MAX_LEGACY_KEYS;
+        }
+    };
+
+    public KeyManager(String password, byte[] installSalt, int iterations) {
+        this(password, installSalt, iterations, null, null);
+    }
+
+    private KeyManager(String password, byte[] installSalt, int iterations, File paramsFile, CipherSuite suite) {
+        mPassword = password;
+        mInstallSalt = installSalt;
+        mIterations = iterations;
+        mParamsFile = paramsFile;
+        mCipherSuite = suite;
+    }
+
+    /**
+     * Loads the install salt and iteration count stored in {@code paramsFile}, creating them only
+     * if the file doesn't exist. The stored count wins over {@code iterations}, so raising the
+     * default only affects new installs and never makes existing entries unreadable.
+     *
+     * A file that can't be read is left alone and an IllegalStateException is thrown, a new salt
+     * would make every cached entry and vault of the install unreadable for good. So is failing to
+     * store new parameters, entries encrypted with a salt that was never stored are lost.
+     */
+    public static KeyManager open(File paramsFile, String password, int iterations) {
+        if (!paramsFile.exists()) {
+            byte[] salt = Crypto.generateIv(INSTALL_SALT_LENGTH);
+            try {
+                writeParams(paramsFile, iterations, salt, null);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to write key parameters to " + paramsFile, e);
+            }
+            return new KeyManager(password, salt, iterations, paramsFile, null);
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(paramsFile));
+            int version = in.readInt();
+            if (version != PARAMS_VERSION) {
+                throw new IllegalStateException("Unsupported key parameters version " + version + " in " + paramsFile);
+            }
+            int storedIterations = in.readInt();
+            byte[] salt = new byte[INSTALL_SALT_LENGTH];
+            in.readFully(salt);
+            CipherSuite suite = readCipherSuite(in);
+            // a restored backup may name a suite this device lacks, it is chosen again
+            if (suite != null && !suite.isAvailable()) {
+                suite = null;
+            }
+            return new KeyManager(password, salt, storedIterations, paramsFile, suite);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read key parameters from " + paramsFile, e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // The suite id trails the original fields, so older versions still read the file.
+    // Files written before suites existed simply end after the salt.
+    private static CipherSuite readCipherSuite(DataInputStream in) throws IOException {
+        try {
+            return CipherSuite.fromId(in.readInt());
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void writeParams(File paramsFile, int iterations, byte[] salt, CipherSuite suite)
+            throws IOException {
+        // written next to the file and renamed, a crash never leaves a half written salt
+        File tmpFile = new File(paramsFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmpFile));
+            out.writeInt(PARAMS_VERSION);
+            out.writeInt(iterations);
+            out.write(salt);
+            out.writeInt(suite != null ? suite.id : 0);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(paramsFile)) {
+                throw new IOException("Failed to rename " + tmpFile);
+            }
+        } finally {
+            closeQuietly(out);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Suite new entries are encrypted with. On first use the fastest one is measured and
+     * stored with the key parameters, takes a few ms.
+     */
+    public CipherSuite getCipherSuite() {
+        CipherSuite suite = mCipherSuite;
+        if (suite == null) {
+            synchronized (this) {
+                suite = mCipherSuite;
+                if (suite == null) {
+                    suite = CipherSuiteSelector.selectFastest();
+                    if (mParamsFile != null) {
+                        try {
+                            writeParams(mParamsFile, mIterations, mInstallSalt, suite);
+                        } catch (IOException e) {
+                            // the salt is already stored, the suite is just measured again next start
+                            e.printStackTrace();
+                        }
+                    }
+                    mCipherSuite = suite;
+                }
+            }
+        }
+        return suite;
+    }
+
+    /**
+     * Overrides the suite for this process only, the stored choice is left alone.
+     */
+    public void setCipherSuite(CipherSuite suite) {
+        mCipherSuite = suite;
+    }
+
+    public SecretKey getMasterKey() {
+        SecretKey key = mMasterKey;
+        if (key == null) {
+            synchronized (this) {
+                key = mMasterKey;
+                if (key == null) {
+                    key = Crypto.deriveKeyPbkdf2(mInstallSalt, mPassword, mIterations);
+                    mMasterKey = key;
+                }
+            }
+        }
+        return key;
+    }
+
+    public SecretKey getEntryKey(byte[] salt) {
+        byte[] keyBytes = Crypto.hkdfSha256(getMasterKey().getEncoded(), salt, ENTRY_KEY_INFO, Crypto.KEY_LENGTH / 8);
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
+    /**
+     * Key of the per-entry side records, one for the whole cache so loading the index doesn't
+     * run HKDF per entry.
+     */
+    public SecretKey getIndexKey() {
+        SecretKey key = mIndexKey;
+        if (key == null) {
+            byte[] keyBytes = Crypto.hkdfSha256(getMasterKey().getEncoded(), mInstallSalt, INDEX_KEY_INFO,
+                    Crypto.KEY_LENGTH / 8);
+            key = new SecretKeySpec(keyBytes, "AES");
+            mIndexKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * Key for entries written before the master key existed, which salted PBKDF2 per entry.
+     */
+    public SecretKey getLegacyKey(byte[] salt) {
+        String cacheKey = Crypto.toBase64(salt);
+        synchronized (mLegacyKeys) {
+            SecretKey key = mLegacyKeys.get(cacheKey);
+            if (key != null) {
+                return key;
+            }
+        }
+
+        SecretKey key = Crypto.deriveKeyPbkdf2(salt, mPassword);
+        synchronized (mLegacyKeys) {
+            mLegacyKeys.put(cacheKey, key);
+        }
+        return key;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.imagesecurebox.security;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and authenticates the small side records stored next to cache entries: one version
+ * byte, a random IV, the AES-CTR ciphertext and a truncated HMAC-SHA256 over all of them, 33
+ * bytes on top of the plaintext. The records hold bounds and lengths that size decodes and
+ * buffers, so a record that was changed on disk is rejected instead of read.
+ *
+ * Both keys are expanded from the index key once, so decrypting a record costs a cipher and a
+ * MAC init.
+ */
+public class RecordCipher {
+    // 1 was encrypted without a MAC, such records are rejected like tampered ones
+    private static final byte VERSION = 2;
+    private static final int IV_LENGTH = 16;
+    private static final int TAG_LENGTH = 16;
+    private static final String CIPHER_ALGORITHM = "AES/CTR/NoPadding";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] ENCRYPTION_KEY_INFO = {'I', 'S', 'B', '-', 'r', 'e', 'c', 'o', 'r', 'd'};
+    private static final byte[] MAC_KEY_INFO = {'I', 'S', 'B', '-', 'r', 'e', 'c', 'o', 'r', 'd', '-', 'm', 'a', 'c'};
+
+    private final SecretKey mEncryptionKey;
+    private final SecretKey mMacKey;
+
+    // Cipher and Mac are not thread safe, each thread keeps its own instances
+    private static final ThreadLocal<Cipher> sCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(CIPHER_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+    private static final ThreadLocal<Mac> sMac = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance(MAC_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    public RecordCipher(SecretKey key) {
+        byte[] keyBytes = key.getEncoded();
+        // HKDF without a salt uses a block of zeros
+        byte[] salt = new byte[32];
+        mEncryptionKey = new SecretKeySpec(
+                Crypto.hkdfSha256(keyBytes, salt, ENCRYPTION_KEY_INFO, Crypto.KEY_LENGTH / 8), "AES");
+        mMacKey = new SecretKeySpec(Crypto.hkdfSha256(keyBytes, salt, MAC_KEY_INFO, 32), MAC_ALGORITHM);
+    }
+
+    public byte[] encrypt(byte[] plaintext) {
+        byte[] iv = Crypto.generateIv(IV_LENGTH);
+        int dataLength = 1 + IV_LENGTH + plaintext.length;
+        byte[] record = new byte[dataLength + TAG_LENGTH];
+        record[0] = VERSION;
+        System.arraycopy(iv, 0, record, 1, IV_LENGTH);
+        try {
+            Cipher cipher = sCipher.get();
+            cipher.init(Cipher.ENCRYPT_MODE, mEncryptionKey, new IvParameterSpec(iv));
+            cipher.doFinal(plaintext, 0, plaintext.length, record, 1 + IV_LENGTH);
+            System.arraycopy(tag(record, dataLength), 0, record, dataLength, TAG_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        return record;
+    }
+
+    /**
+     * Fails with an IOException if the record was not written by this cipher or was modified.
+     */
+    public byte[] decrypt(byte[] record) throws IOException {
+        int dataLength = record.length - TAG_LENGTH;
+        if (dataLength < 1 + IV_LENGTH || record[0] != VERSION) {
+            throw new IOException("Not an authenticated record");
+        }
+        try {
+            byte[] expected = tag(record, dataLength);
+            byte[] actual = new byte[TAG_LENGTH];
+            System.arraycopy(record, dataLength, actual, 0, TAG_LENGTH);
+            if (!MessageDigest.isEqual(expected, actual)) {
+                throw new IOException("Record failed authentication");
+            }
+            Cipher cipher = sCipher.get();
+            cipher.init(Cipher.DECRYPT_MODE, mEncryptionKey, new IvParameterSpec(record, 1, IV_LENGTH));
+            return cipher.doFinal(record, 1 + IV_LENGTH, dataLength - 1 - IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // HMAC over version, IV and ciphertext, truncated
+    private byte[] tag(byte[] record, int dataLength) throws GeneralSecurityException {
+        Mac mac = sMac.get();
+        mac.init(mMacKey);
+        mac.update(record, 0, dataLength);
+        byte[] tag = new byte[TAG_LENGTH];
+        System.arraycopy(mac.doFinal(), 0, tag, 0, TAG_LENGTH);
+        return tag;
+    }
+}
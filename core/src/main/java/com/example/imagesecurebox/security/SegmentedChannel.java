@@ -0,0 +1,78 @@
+package com.example.imagesecurebox.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * Decrypting, seekable view over a {@link SegmentedCipher} container. CTR needs no look at the
+ * rest of a segment, a read decrypts just the bytes it returns through fixed-size buffers.
+ */
+public class SegmentedChannel extends DecryptingChannel {
+    private static final int BUFFER_SIZE = 1024 * 8;
+
+    private final SegmentedCipher mSegmentedCipher;
+    private final byte[] mCipherBuffer = new byte[BUFFER_SIZE];
+    private final byte[] mPlainBuffer = new byte[BUFFER_SIZE];
+
+    private Cipher mCipher;
+    // plaintext position the current cipher's keystream is at, -1 if it has to be re-initialized
+    private long mCipherPosition = -1;
+
+    SegmentedChannel(SegmentedCipher segmentedCipher, FileChannel file, long dataOffset) {
+        super(file, dataOffset);
+        mSegmentedCipher = segmentedCipher;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return mFile.size() - mDataOffset;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (mPosition >= size()) {
+            return -1;
+        }
+
+        int total = 0;
+        int segmentSize = mSegmentedCipher.getSegmentSize();
+        while (dst.hasRemaining()) {
+            int inSegment = (int) (mPosition % segmentSize);
+            int skip = 0;
+            if (mCipherPosition != mPosition || inSegment == 0) {
+                mCipher = mSegmentedCipher.newCipher(Cipher.DECRYPT_MODE, mPosition);
+                skip = inSegment % SegmentedCipher.BLOCK_SIZE;
+            }
+
+            int want = Math.min(dst.remaining() + skip, BUFFER_SIZE);
+            want = Math.min(want, segmentSize - inSegment + skip);
+            int read = mFile.read(ByteBuffer.wrap(mCipherBuffer, 0, want), mDataOffset + mPosition - skip);
+            if (read <= skip) {
+                break;
+            }
+
+            try {
+                mCipher.update(mCipherBuffer, 0, read, mPlainBuffer);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            int count = read - skip;
+            dst.put(mPlainBuffer, skip, count);
+            mPosition += count;
+            mCipherPosition = mPosition;
+            total += count;
+            if (read < want) {
+                break;
+            }
+        }
+        return total;
+    }
+}
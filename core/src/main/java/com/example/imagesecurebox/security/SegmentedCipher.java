@@ -0,0 +1,197 @@
+package com.example.imagesecurebox.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * AES-CTR over fixed-size plaintext segments. Every segment has its own counter block
+ * (nonce | segment index | block index), so any byte range can be decrypted on its own and
+ * ciphertext offsets are plaintext offsets.
+ */
+public class SegmentedCipher {
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 64;
+    public static final int NONCE_LENGTH = 8;
+
+    static final int BLOCK_SIZE = 16;
+    private static final String CIPHER_ALGORITHM = "AES/CTR/NoPadding";
+
+    private final SecretKey mKey;
+    private final byte[] mNonce;
+    private final int mSegmentSize;
+
+    public SegmentedCipher(SecretKey key, byte[] nonce, int segmentSize) {
+        if (nonce.length != NONCE_LENGTH || segmentSize <= 0 || segmentSize % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("Invalid segment parameters");
+        }
+        mKey = key;
+        mNonce = nonce;
+        mSegmentSize = segmentSize;
+    }
+
+    public int getSegmentSize() {
+        return mSegmentSize;
+    }
+
+    /**
+     * Returns a cipher whose keystream starts at the block containing {@code position}, callers
+     * discard the first {@code position % BLOCK_SIZE} output bytes.
+     */
+    Cipher newCipher(int mode, long position) {
+        long segment = position / mSegmentSize;
+        long block = (position % mSegmentSize) / BLOCK_SIZE;
+        byte[] counter = new byte[BLOCK_SIZE];
+        System.arraycopy(mNonce, 0, counter, 0, NONCE_LENGTH);
+        putInt(counter, NONCE_LENGTH, (int) segment);
+        putInt(counter, NONCE_LENGTH + 4, (int) block);
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(mode, mKey, new IvParameterSpec(counter));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Decrypts a whole in-memory ciphertext, segment by segment.
+     */
+    public byte[] decrypt(byte[] data, int offset, int length) {
+        byte[] plaintext = new byte[length];
+        try {
+            for (int position = 0; position < length; position += mSegmentSize) {
+                int count = Math.min(mSegmentSize, length - position);
+                newCipher(Cipher.DECRYPT_MODE, position).doFinal(data, offset + position, count, plaintext, position);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        return plaintext;
+    }
+
+    /**
+     * Encrypts everything written to it into {@code out}, switching counters at every segment
+     * boundary. Closing the stream closes {@code out}.
+     */
+    public OutputStream newEncryptingStream(OutputStream out) {
+        return new EncryptingStream(out);
+    }
+
+    /**
+     * Sequential plaintext view over ciphertext read from {@code in}. Closing it closes {@code in}.
+     */
+    public InputStream newDecryptingStream(InputStream in) {
+        return new DecryptingStream(in);
+    }
+
+    /**
+     * Random access view over ciphertext stored in {@code file} starting at {@code dataOffset}.
+     */
+    public SegmentedChannel newChannel(FileChannel file, long dataOffset) {
+        return new SegmentedChannel(this, file, dataOffset);
+    }
+
+    private class DecryptingStream extends InputStream {
+        private final InputStream mIn;
+        private final byte[] mBuffer = new byte[1024 * 8];
+        private Cipher mCipher;
+        private long mPosition;
+
+        DecryptingStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int inSegment = (int) (mPosition % mSegmentSize);
+            if (inSegment == 0 || mCipher == null) {
+                mCipher = newCipher(Cipher.DECRYPT_MODE, mPosition);
+            }
+            int count = Math.min(Math.min(len, mBuffer.length), mSegmentSize - inSegment);
+            int bytesRead = mIn.read(mBuffer, 0, count);
+            if (bytesRead == -1) {
+                return -1;
+            }
+            try {
+                mCipher.update(mBuffer, 0, bytesRead, b, off);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            mPosition += bytesRead;
+            return bytesRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    private class EncryptingStream extends OutputStream {
+        private final OutputStream mOut;
+        private final byte[] mBuffer = new byte[1024 * 8];
+        private Cipher mCipher;
+        private long mPosition;
+
+        EncryptingStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int inSegment = (int) (mPosition % mSegmentSize);
+                if (inSegment == 0 || mCipher == null) {
+                    mCipher = newCipher(Cipher.ENCRYPT_MODE, mPosition);
+                }
+                int count = Math.min(Math.min(len, mBuffer.length), mSegmentSize - inSegment);
+                try {
+                    int produced = mCipher.update(b, off, count, mBuffer);
+                    mOut.write(mBuffer, 0, produced);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+                mPosition += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.imagesecurebox.util;
+
+import java.util.Arrays;
+
+/**
+ * Plain Java replacement for the subset of {@code android.util.Base64} the crypto code uses, so
+ * the core module also runs on a desktop JVM. Encoding never wraps lines (like
+ * {@code NO_WRAP}), decoding skips characters outside the alphabet the way Android does.
+ */
+public class Base64 {
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] DECODE = new int[128];
+
+    static {
+        Arrays.fill(DECODE, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64() {
+    }
+
+    public static String encodeToString(byte[] input) {
+        char[] out = new char[(input.length + 2) / 3 * 4];
+        int o = 0;
+        int i = 0;
+        while (i + 3 <= input.length) {
+            int bits = (input[i++] & 0xFF) << 16 | (input[i++] & 0xFF) << 8 | (input[i++] & 0xFF);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3F];
+            out[o++] = ALPHABET[(bits >>> 6) & 0x3F];
+            out[o++] = ALPHABET[bits & 0x3F];
+        }
+        int remaining = input.length - i;
+        if (remaining > 0) {
+            int bits = (input[i] & 0xFF) << 16 | (remaining == 2 ? (input[i + 1] & 0xFF) << 8 : 0);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3F];
+            out[o++] = remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3F] : '=';
+            out[o] = '=';
+        }
+        return new String(out);
+    }
+
+    /**
+     * Decodes {@code input}, stopping at the first padding character.
+     *
+     * @throws IllegalArgumentException if the input ends in the middle of a byte
+     */
+    public static byte[] decode(String input) {
+        byte[] out = new byte[input.length() * 3 / 4];
+        int o = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == '=') {
+                break;
+            }
+            int value = c < DECODE.length ? DECODE[c] : -1;
+            if (value == -1) {
+                continue;
+            }
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                out[o++] = (byte) (bits >>> 16);
+                out[o++] = (byte) (bits >>> 8);
+                out[o++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 1) {
+            throw new IllegalArgumentException("bad base-64");
+        } else if (count == 2) {
+            out[o++] = (byte) (bits >>> 4);
+        } else if (count == 3) {
+            out[o++] = (byte) (bits >>> 10);
+            out[o++] = (byte) (bits >>> 2);
+        }
+        return o == out.length ? out : Arrays.copyOf(out, o);
+    }
+}
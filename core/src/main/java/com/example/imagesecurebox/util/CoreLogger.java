@@ -0,0 +1,40 @@
+package com.example.imagesecurebox.util;
+
+/**
+ * Logging used by the platform independent code. Messages go to {@link Sink}, the app forwards
+ * them to its logger, on a plain JVM nothing is logged unless a sink is installed.
+ */
+public class CoreLogger {
+    public interface Sink {
+        void d(String message);
+
+        void e(String message);
+    }
+
+    private static final Sink NO_OP = new Sink() {
+        @Override
+        public void d(String message) {
+        }
+
+        @Override
+        public void e(String message) {
+        }
+    };
+
+    private static volatile Sink sSink = NO_OP;
+
+    private CoreLogger() {
+    }
+
+    public static void setSink(Sink sink) {
+        sSink = sink != null ? sink : NO_OP;
+    }
+
+    public static void d(String message) {
+        sSink.d(message);
+    }
+
+    public static void e(String message) {
+        sSink.e(message);
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.imagesecurebox.net;
+
+import com.example.imagesecurebox.model.EntryMetadata;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link HttpFetcher} against a local stand-in for the image server.
+ */
+public class HttpFetcherTest {
+    private static final byte[] IMAGE = "not really a jpeg".getBytes();
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Mon, 01 Aug 2016 08:00:00 GMT";
+
+    private HttpServer mServer;
+    private String mUrl;
+    private final Set<Integer> mClientPorts = new HashSet<>();
+    private final AtomicInteger mFullResponses = new AtomicInteger();
+    private volatile String mCacheControl = "max-age=60";
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/image.jpg", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                synchronized (mClientPorts) {
+                    mClientPorts.add(exchange.getRemoteAddress().getPort());
+                }
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+                exchange.getResponseHeaders().set("Cache-Control", mCacheControl);
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    mFullResponses.incrementAndGet();
+                    exchange.sendResponseHeaders(200, IMAGE.length);
+                    OutputStream body = exchange.getResponseBody();
+                    body.write(IMAGE);
+                    body.close();
+                }
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/image.jpg";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void storesValidatorsOfFullResponse() throws IOException {
+        EntryMetadata metadata = new EntryMetadata();
+        long before = System.currentTimeMillis();
+        HttpFetcher.Response response = new HttpFetcher().open(mUrl, null);
+        assertTrue(response.isSuccessful());
+        assertArrayEquals(IMAGE, readFully(response.getBody()));
+        response.copyValidatorsTo(metadata);
+        response.close();
+
+        assertEquals(ETAG, metadata.getETag());
+        assertEquals(LAST_MODIFIED, metadata.getLastModified());
+        assertTrue(metadata.getExpires() >= before + 60 * 1000);
+        assertFalse(metadata.isStale(System.currentTimeMillis()));
+
+        EntryMetadata read = EntryMetadata.read(new ByteArrayInputStream(toBytes(metadata)));
+        assertEquals(ETAG, read.getETag());
+        assertEquals(metadata.getExpires(), read.getExpires());
+    }
+
+    @Test
+    public void revalidatesWithoutBody() throws IOException {
+        EntryMetadata cached = new EntryMetadata().setETag(ETAG).setLastModified(LAST_MODIFIED).setExpires(1);
+        assertTrue(cached.isStale(System.currentTimeMillis()));
+
+        HttpFetcher.Response response = new HttpFetcher().open(mUrl, cached);
+        assertTrue(response.isNotModified());
+        response.copyValidatorsTo(cached);
+        response.close();
+
+        assertEquals(0, mFullResponses.get());
+        assertEquals(ETAG, cached.getETag());
+        assertFalse(cached.isStale(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void noCacheIsAlwaysStale() throws IOException {
+        mCacheControl = "no-cache";
+        EntryMetadata metadata = new EntryMetadata();
+        HttpFetcher.Response response = new HttpFetcher().open(mUrl, null);
+        readFully(response.getBody());
+        response.copyValidatorsTo(metadata);
+        response.close();
+
+        assertTrue(metadata.isStale(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void reusesConnection() throws IOException {
+        HttpFetcher fetcher = new HttpFetcher();
+        for (int i = 0; i < 3; i++) {
+            HttpFetcher.Response response = fetcher.open(mUrl, null);
+            readFully(response.getBody());
+            response.close();
+        }
+        HttpFetcher.Response notModified = fetcher.open(mUrl, new EntryMetadata().setETag(ETAG));
+        notModified.close();
+
+        assertEquals(1, mClientPorts.size());
+    }
+
+    @Test
+    public void parsesFreshness() {
+        assertEquals(61000, HttpFetcher.parseExpires("public, max-age=60", 0, 1000));
+        assertEquals(61000, HttpFetcher.parseExpires("max-age=60, must-revalidate", 0, 1000));
+        assertEquals(1000, HttpFetcher.parseExpires("max-age=60, no-cache", 0, 1000));
+        assertEquals(5000, HttpFetcher.parseExpires(null, 5000, 1000));
+        assertEquals(5000, HttpFetcher.parseExpires("max-age=oops", 5000, 1000));
+        assertEquals(0, HttpFetcher.parseExpires("public", 0, 1000));
+        assertNull(new EntryMetadata().setExpires(0).getETag());
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] toBytes(EntryMetadata metadata) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        metadata.writeTo(out);
+        return out.toByteArray();
+    }
+}
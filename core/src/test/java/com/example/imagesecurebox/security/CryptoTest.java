@@ -0,0 +1,399 @@
+package com.example.imagesecurebox.security;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips of the authenticated container with every suite, what happens to entries that
+ * were tampered with or cut short, random access reads of segmented entries and the side
+ * records of the disk cache index.
+ */
+public class CryptoTest {
+    private static final String PASSWORD = "test";
+    // below, exactly at and across the segment size
+    private static final int[] SIZES = {0, 1, 1000, SegmentedCipher.DEFAULT_SEGMENT_SIZE,
+            SegmentedCipher.DEFAULT_SEGMENT_SIZE * 3 + 17};
+
+    private static KeyManager newKeys(CipherSuite suite) {
+        KeyManager keys = new KeyManager(PASSWORD, Crypto.generateSalt(), 1000);
+        keys.setCipherSuite(suite);
+        return keys;
+    }
+
+    private static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTripsWithEverySuite() throws IOException {
+        for (CipherSuite suite : CipherSuite.values()) {
+            KeyManager keys = newKeys(suite);
+            for (int size : SIZES) {
+                byte[] plaintext = payload(size);
+                byte[] encrypted = Crypto.encrypt(plaintext, keys);
+                assertArrayEquals(suite + " " + size, plaintext, Crypto.decrypt(encrypted, keys));
+                assertArrayEquals(suite + " " + size, plaintext,
+                        readAll(Crypto.newDecryptingStream(new ByteArrayInputStream(encrypted), keys)));
+            }
+        }
+    }
+
+    @Test
+    public void mixedSuitesDecryptWithTheSameKeys() {
+        KeyManager keys = newKeys(CipherSuite.AES_GCM);
+        byte[] plaintext = payload(5000);
+        byte[] gcm = Crypto.encrypt(plaintext, keys);
+        keys.setCipherSuite(CipherSuite.AES_CTR_HMAC_SHA256);
+        byte[] ctr = Crypto.encrypt(plaintext, keys);
+        assertArrayEquals(plaintext, Crypto.decrypt(gcm, keys));
+        assertArrayEquals(plaintext, Crypto.decrypt(ctr, keys));
+    }
+
+    @Test
+    public void closingTheStreamWritesTheLastSegment() throws IOException {
+        KeyManager keys = newKeys(CipherSuite.AES_CTR_HMAC_SHA256);
+        byte[] plaintext = payload(SegmentedCipher.DEFAULT_SEGMENT_SIZE + 5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encrypting = Crypto.newEncryptingStream(out, keys);
+        encrypting.write(plaintext);
+        encrypting.close();
+        assertArrayEquals(plaintext, Crypto.decrypt(out.toByteArray(), keys));
+    }
+
+    @Test
+    public void rejectsTamperedEntries() throws IOException {
+        for (CipherSuite suite : CipherSuite.values()) {
+            KeyManager keys = newKeys(suite);
+            byte[] encrypted = Crypto.encrypt(payload(SegmentedCipher.DEFAULT_SEGMENT_SIZE * 2), keys);
+            encrypted[encrypted.length / 2] ^= 1;
+            try {
+                Crypto.decrypt(encrypted, keys);
+                fail(suite + " accepted a flipped bit");
+            } catch (IllegalArgumentException expected) {
+                // failed authentication
+            }
+            try {
+                readAll(Crypto.newDecryptingStream(new ByteArrayInputStream(encrypted), keys));
+                fail(suite + " streamed a flipped bit");
+            } catch (IOException expected) {
+                // failed authentication
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedEntries() {
+        KeyManager keys = newKeys(CipherSuite.AES_GCM);
+        byte[] encrypted = Crypto.encrypt(payload(SegmentedCipher.DEFAULT_SEGMENT_SIZE * 2), keys);
+        // cut right after the first full segment, the remainder still looks like a valid last one
+        int[] lengths = {encrypted.length - 1,
+                encrypted.length - (SegmentedCipher.DEFAULT_SEGMENT_SIZE + CipherSuite.TAG_LENGTH) - CipherSuite.TAG_LENGTH};
+        for (int length : lengths) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(encrypted, 0, truncated, 0, length);
+            try {
+                Crypto.decrypt(truncated, keys);
+                fail("Accepted an entry cut to " + length + " bytes");
+            } catch (IllegalArgumentException expected) {
+                // truncated
+            }
+        }
+    }
+
+    @Test
+    public void persistsTheChosenSuite() throws IOException {
+        File params = File.createTempFile("key_params", null);
+        params.delete();
+        try {
+            KeyManager keys = KeyManager.open(params, PASSWORD, 1000);
+            CipherSuite chosen = keys.getCipherSuite();
+            assertNotNull(chosen);
+            byte[] encrypted = Crypto.encrypt(payload(100), keys);
+
+            KeyManager reopened = KeyManager.open(params, PASSWORD, 1000);
+            assertEquals(chosen, reopened.getCipherSuite());
+            assertArrayEquals(payload(100), Crypto.decrypt(encrypted, reopened));
+        } finally {
+            params.delete();
+        }
+    }
+
+    @Test
+    public void failsWhenNewParamsCantBeStored() throws IOException {
+        File dir = File.createTempFile("key_params", null);
+        dir.delete();
+        // the directory doesn't exist, so writing the file fails
+        File params = new File(dir, "key_params");
+        try {
+            KeyManager.open(params, PASSWORD, 1000);
+            fail("Opened keys with a salt that was never stored");
+        } catch (IllegalStateException expected) {
+            // nothing to encrypt with
+        }
+        assertFalse(params.exists());
+    }
+
+    @Test
+    public void leavesUnreadableParamsAlone() throws IOException {
+        File params = File.createTempFile("key_params", null);
+        byte[] garbage = {0, 0, 0, 9, 1, 2};
+        FileOutputStream out = new FileOutputStream(params);
+        out.write(garbage);
+        out.close();
+        try {
+            KeyManager.open(params, PASSWORD, 1000);
+            fail("Opened key parameters of an unknown version");
+        } catch (IllegalStateException expected) {
+            // the salt is not replaced
+        } finally {
+            byte[] stored = readAll(new FileInputStream(params));
+            params.delete();
+            assertArrayEquals(garbage, stored);
+        }
+    }
+
+    // segments of four AES blocks, so short reads cross many boundaries
+    private static final int SMALL_SEGMENT = SegmentedCipher.BLOCK_SIZE * 4;
+    private static final int HEADER_LENGTH = 7;
+
+    private static SegmentedChannel openChannel(SegmentedCipher cipher, byte[] plaintext, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[HEADER_LENGTH]);
+        OutputStream encrypting = cipher.newEncryptingStream(out);
+        encrypting.write(plaintext);
+        encrypting.close();
+        return cipher.newChannel(new RandomAccessFile(file, "r").getChannel(), HEADER_LENGTH);
+    }
+
+    private static SegmentedCipher newSegmentedCipher() {
+        return new SegmentedCipher(new SecretKeySpec(Crypto.generateIv(Crypto.KEY_LENGTH / 8), "AES"),
+                Crypto.generateIv(SegmentedCipher.NONCE_LENGTH), SMALL_SEGMENT);
+    }
+
+    private static byte[] read(DecryptingChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.position(position);
+        while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+            // partial reads stop at segment ends
+        }
+        byte[] result = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(result);
+        return result;
+    }
+
+    private static byte[] range(byte[] data, int from, int to) {
+        byte[] result = new byte[to - from];
+        System.arraycopy(data, from, result, 0, result.length);
+        return result;
+    }
+
+    @Test
+    public void channelSeeksWithinAndAcrossSegments() throws IOException {
+        // ends in a partial segment and a partial block
+        byte[] plaintext = payload(SMALL_SEGMENT * 5 + 21);
+        File file = File.createTempFile("segments", null);
+        SegmentedChannel channel = openChannel(newSegmentedCipher(), plaintext, file);
+        try {
+            assertEquals(plaintext.length, channel.size());
+            int[][] reads = {
+                    {0, plaintext.length},
+                    // inside one block, block aligned, mid block across a segment boundary
+                    {3, 5}, {SegmentedCipher.BLOCK_SIZE, SegmentedCipher.BLOCK_SIZE},
+                    {SMALL_SEGMENT - 5, 10},
+                    // several segments at once, then backwards
+                    {SMALL_SEGMENT + 7, SMALL_SEGMENT * 3}, {1, SMALL_SEGMENT * 2},
+                    // the partial last segment, up to and past the end
+                    {SMALL_SEGMENT * 5 + 3, 18}, {plaintext.length - 4, 100},
+            };
+            for (int[] r : reads) {
+                int end = Math.min(plaintext.length, r[0] + r[1]);
+                assertArrayEquals("read " + r[0] + "+" + r[1], range(plaintext, r[0], end), read(channel, r[0], r[1]));
+                assertEquals(end, channel.position());
+            }
+            channel.position(plaintext.length);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        } finally {
+            channel.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void channelStreamsFromItsPosition() throws IOException {
+        byte[] plaintext = payload(SMALL_SEGMENT * 3 + 1);
+        File file = File.createTempFile("segments", null);
+        SegmentedChannel channel = openChannel(newSegmentedCipher(), plaintext, file);
+        try {
+            channel.position(SMALL_SEGMENT + 9);
+            assertArrayEquals(range(plaintext, SMALL_SEGMENT + 9, plaintext.length), readAll(channel.newInputStream()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static DecryptingChannel openEntry(byte[] encrypted, File file, KeyManager keys) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(encrypted);
+        out.close();
+        return Crypto.openChannel(new RandomAccessFile(file, "r").getChannel(), keys);
+    }
+
+    @Test
+    public void authenticatedChannelSeeksWithEverySuite() throws IOException {
+        int segment = SegmentedCipher.DEFAULT_SEGMENT_SIZE;
+        for (CipherSuite suite : CipherSuite.values()) {
+            KeyManager keys = newKeys(suite);
+            for (int size : SIZES) {
+                byte[] plaintext = payload(size);
+                File file = File.createTempFile("segments", null);
+                DecryptingChannel channel = openEntry(Crypto.encrypt(plaintext, keys), file, keys);
+                try {
+                    assertEquals(plaintext.length, channel.size());
+                    // everything, across a segment boundary, backwards and past the end
+                    int[][] reads = {{0, size}, {segment - 5, 10}, {3, 5}, {size - 4, 100}};
+                    for (int[] r : reads) {
+                        int from = Math.max(0, Math.min(size, r[0]));
+                        int end = Math.min(size, from + r[1]);
+                        assertArrayEquals(suite + " " + size + " read " + from, range(plaintext, from, end),
+                                read(channel, from, r[1]));
+                    }
+                    channel.position(size);
+                    assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+                } finally {
+                    channel.close();
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void authenticatedChannelRejectsTamperedSegments() throws IOException {
+        int segment = SegmentedCipher.DEFAULT_SEGMENT_SIZE;
+        KeyManager keys = newKeys(CipherSuite.AES_GCM);
+        byte[] plaintext = payload(segment * 2 + 17);
+        byte[] encrypted = Crypto.encrypt(plaintext, keys);
+        // a bit in the second segment, the first still reads
+        encrypted[encrypted.length - 17 - CipherSuite.TAG_LENGTH - segment / 2] ^= 1;
+        File file = File.createTempFile("segments", null);
+        DecryptingChannel channel = openEntry(encrypted, file, keys);
+        try {
+            assertArrayEquals(range(plaintext, 0, 100), read(channel, 0, 100));
+            try {
+                read(channel, segment + 1, 10);
+                fail("Channel returned a tampered segment");
+            } catch (IOException expected) {
+                // failed authentication
+            }
+        } finally {
+            channel.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void authenticatedChannelRejectsTruncatedEntries() throws IOException {
+        int segment = SegmentedCipher.DEFAULT_SEGMENT_SIZE;
+        KeyManager keys = newKeys(CipherSuite.AES_CTR_HMAC_SHA256);
+        byte[] encrypted = Crypto.encrypt(payload(segment * 2 + 17), keys);
+        // cut right after the second full segment and inside the last one
+        int[] lengths = {encrypted.length - 17 - CipherSuite.TAG_LENGTH, encrypted.length - 1};
+        for (int length : lengths) {
+            File file = File.createTempFile("segments", null);
+            DecryptingChannel channel = openEntry(range(encrypted, 0, length), file, keys);
+            try {
+                readAll(channel.newInputStream());
+                fail("Channel read an entry cut to " + length + " bytes");
+            } catch (IOException expected) {
+                // truncated
+            } finally {
+                channel.close();
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void segmentedStreamsMatchInMemoryDecrypt() throws IOException {
+        SegmentedCipher cipher = newSegmentedCipher();
+        byte[] plaintext = payload(SMALL_SEGMENT * 2 + 5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encrypting = cipher.newEncryptingStream(out);
+        // odd write sizes, so the stream switches counters in the middle of a write
+        for (int i = 0; i < plaintext.length; i += 13) {
+            encrypting.write(plaintext, i, Math.min(13, plaintext.length - i));
+        }
+        encrypting.close();
+        byte[] encrypted = out.toByteArray();
+        assertArrayEquals(plaintext, cipher.decrypt(encrypted, 0, encrypted.length));
+        assertArrayEquals(plaintext, readAll(cipher.newDecryptingStream(new ByteArrayInputStream(encrypted))));
+    }
+
+    @Test
+    public void recordsRoundTrip() throws IOException {
+        RecordCipher cipher = new RecordCipher(new SecretKeySpec(Crypto.generateIv(32), "AES"));
+        for (int size : new int[]{0, 1, 100}) {
+            byte[] plaintext = payload(size);
+            assertArrayEquals(plaintext, cipher.decrypt(cipher.encrypt(plaintext)));
+        }
+    }
+
+    @Test
+    public void rejectsTamperedRecords() {
+        SecretKeySpec key = new SecretKeySpec(Crypto.generateIv(32), "AES");
+        RecordCipher cipher = new RecordCipher(key);
+        byte[] record = cipher.encrypt(payload(100));
+        // version, IV, ciphertext and tag are all covered
+        for (int i = 0; i < record.length; i++) {
+            byte[] tampered = record.clone();
+            tampered[i] ^= 1;
+            assertRecordRejected(cipher, tampered);
+        }
+        byte[] truncated = new byte[record.length - 1];
+        System.arraycopy(record, 0, truncated, 0, truncated.length);
+        assertRecordRejected(cipher, truncated);
+        assertRecordRejected(cipher, new byte[0]);
+        assertRecordRejected(new RecordCipher(new SecretKeySpec(Crypto.generateIv(32), "AES")), record);
+    }
+
+    private static void assertRecordRejected(RecordCipher cipher, byte[] record) {
+        try {
+            cipher.decrypt(record);
+            fail("Tampered record was accepted");
+        } catch (IOException expected) {
+        }
+    }
+}
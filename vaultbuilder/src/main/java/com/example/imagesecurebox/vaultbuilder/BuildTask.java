@@ -0,0 +1,36 @@
+package com.example.imagesecurebox.vaultbuilder;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the input files in halves until a single file is left, so idle workers steal whole
+ * ranges and one slow image never holds up a fixed batch.
+ */
+class BuildTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final VaultBuilder mBuilder;
+    private final List<File> mFiles;
+    private final int mFrom;
+    private final int mTo;
+
+    BuildTask(VaultBuilder builder, List<File> files, int from, int to) {
+        mBuilder = builder;
+        mFiles = files;
+        mFrom = from;
+        mTo = to;
+    }
+
+    @Override
+    protected void compute() {
+        if (mTo - mFrom == 1) {
+            mBuilder.store(mFiles.get(mFrom));
+            return;
+        }
+        int middle = (mFrom + mTo) >>> 1;
+        invokeAll(new BuildTask(mBuilder, mFiles, mFrom, middle),
+                new BuildTask(mBuilder, mFiles, middle, mTo));
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.imagesecurebox.vaultbuilder;
+
+import com.example.imagesecurebox.model.Codec;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Desktop counterpart of the app's storage codec choice. The JDK has no WebP encoder, so where
+ * the app would pick {@link Codec#WEBP} (images with alpha) the source is kept as is, the app
+ * decodes any format BitmapFactory understands regardless of the recorded codec.
+ */
+class ImageTranscoder {
+    // same cap as the app, larger sources are re-encoded
+    static final long MAX_PASSTHROUGH_SIZE = 1024 * 1024 * 2;
+    // same as the app: thumbnails cover this many pixels, smaller images get none
+    static final int THUMBNAIL_SIZE = 256;
+    static final float THUMBNAIL_QUALITY = 0.7f;
+    private static final int BUFFER_SIZE = 1024 * 8;
+
+    private final float mJpegQuality;
+    private final int mMaxDimension;
+
+    /**
+     * @param maxDimension re-encoded images are scaled down to fit this many pixels on their
+     *                     longer side, 0 keeps the source size
+     */
+    ImageTranscoder(float jpegQuality, int maxDimension) {
+        mJpegQuality = jpegQuality;
+        mMaxDimension = maxDimension;
+    }
+
+    /**
+     * Picks the codec {@code file} is stored with, returns null if it isn't an image.
+     */
+    Source prepare(File file) throws IOException {
+        Format format = Format.sniff(file);
+        if (format == Format.UNKNOWN) {
+            return null;
+        }
+        if (format == Format.WEBP) {
+            // nothing to re-encode it with, nor to read its size
+            return new Source(file, Codec.PASSTHROUGH, null, 0, 0);
+        }
+        if (format == Format.JPEG && file.length() <= MAX_PASSTHROUGH_SIZE) {
+            int[] size = readSize(file);
+            return new Source(file, Codec.PASSTHROUGH, null, size[0], size[1]);
+        }
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            return null;
+        }
+        if (image.getColorModel().hasAlpha()) {
+            return new Source(file, Codec.PASSTHROUGH, null, image.getWidth(), image.getHeight());
+        }
+        int[] size = scaledSize(image.getWidth(), image.getHeight());
+        return new Source(file, Codec.JPEG, image, size[0], size[1]);
+    }
+
+    // Only the header is parsed, {0, 0} if no reader knows the format
+    private static int[] readSize(File file) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(file);
+        if (iis == null) {
+            return new int[]{0, 0};
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return new int[]{0, 0};
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new int[]{reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    // the size a re-encoded image is stored at
+    private int[] scaledSize(int width, int height) {
+        int longer = Math.max(width, height);
+        if (mMaxDimension > 0 && longer > mMaxDimension) {
+            width = Math.max(1, width * mMaxDimension / longer);
+            height = Math.max(1, height * mMaxDimension / longer);
+        }
+        return new int[]{width, height};
+    }
+
+    void writeTo(Source source, OutputStream out) throws IOException {
+        switch (source.codec) {
+            case PASSTHROUGH:
+                copy(source.file, out);
+                break;
+            case JPEG:
+                writeJpeg(toRgb(source.image), mJpegQuality, out);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported codec " + source.codec);
+        }
+    }
+
+    /**
+     * Preview of the stored image covering {@link #THUMBNAIL_SIZE} on both sides, null if the
+     * image is small enough not to need one or its size is unknown.
+     */
+    BufferedImage thumbnail(Source source) throws IOException {
+        if (Math.max(source.width, source.height) < THUMBNAIL_SIZE * 2) {
+            return null;
+        }
+        BufferedImage image = source.image != null ? source.image : ImageIO.read(source.file);
+        if (image == null) {
+            return null;
+        }
+        double scale = Math.max((double) THUMBNAIL_SIZE / image.getWidth(), (double) THUMBNAIL_SIZE / image.getHeight());
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            // JPEG has no alpha, transparent areas turn white
+            graphics.drawImage(image, 0, 0, width, height, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        return thumbnail;
+    }
+
+    static byte[] encodeThumbnail(BufferedImage thumbnail) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeJpeg(thumbnail, THUMBNAIL_QUALITY, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * An input file and how it is going to be stored. Re-encoded sources keep the decoded image.
+     * The size is that of the stored image, 0 if it couldn't be read.
+     */
+    static class Source {
+        final File file;
+        final Codec codec;
+        final BufferedImage image;
+        final int width;
+        final int height;
+
+        Source(File file, Codec codec, BufferedImage image, int width, int height) {
+            this.file = file;
+            this.codec = codec;
+            this.image = image;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static void writeJpeg(BufferedImage rgb, float quality, OutputStream out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No JPEG writer available");
+        }
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(rgb, null, null), param);
+        } finally {
+            ios.close();
+            writer.dispose();
+        }
+    }
+
+    // JPEG takes no alpha channel, and this is where large sources get scaled down
+    private BufferedImage toRgb(BufferedImage source) {
+        int[] size = scaledSize(source.getWidth(), source.getHeight());
+        int width = size[0];
+        int height = size[1];
+        if (width == source.getWidth() && source.getType() == BufferedImage.TYPE_INT_RGB) {
+            return source;
+        }
+
+        BufferedImage rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return rgb;
+    }
+
+    private static void copy(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private enum Format {
+        JPEG, WEBP, OTHER, UNKNOWN;
+
+        static Format sniff(File file) throws IOException {
+            byte[] header = new byte[12];
+            InputStream in = new FileInputStream(file);
+            int length;
+            try {
+                length = in.read(header);
+            } finally {
+                in.close();
+            }
+            if (length >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 && (header[2] & 0xFF) == 0xFF) {
+                return JPEG;
+            }
+            if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F'
+                    && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+                return WEBP;
+            }
+            // PNG, GIF and BMP, anything ImageIO can't read is skipped later
+            return length > 0 ? OTHER : UNKNOWN;
+        }
+    }
+}
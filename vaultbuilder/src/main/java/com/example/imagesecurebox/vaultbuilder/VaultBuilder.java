@@ -0,0 +1,306 @@
+package com.example.imagesecurebox.vaultbuilder;
+
+import com.example.imagesecurebox.model.CacheKey;
+import com.example.imagesecurebox.model.Codec;
+import com.example.imagesecurebox.model.EntryMetadata;
+import com.example.imagesecurebox.model.ImageDiskLruCache;
+import com.example.imagesecurebox.security.CipherSuiteSelector;
+import com.example.imagesecurebox.security.Crypto;
+import com.example.imagesecurebox.security.KeyManager;
+import com.example.imagesecurebox.security.RecordCipher;
+import com.example.imagesecurebox.util.CoreLogger;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Builds a ready-to-ship encrypted cache from a directory of images, in the same format
+ * {@code SecureImageService} writes on the device:
+ *
+ * <pre>
+ * VaultBuilder &lt;image dir&gt; &lt;output dir&gt; --key-file &lt;launcher asset&gt; --base-url &lt;url&gt;
+ *              [--threads n] [--jpeg-quality 0-100] [--max-dimension px]
+ * </pre>
+ *
+ * Every image is keyed by {@code base-url} plus its path relative to the image dir, which must
+ * be the URL the app requests it by. The output dir goes to the device as
+ * {@link ImageDiskLruCache#DISK_CACHE_DIR} inside the app's cache dir, key_params included:
+ * the entries can only be decrypted with the install salt generated here.
+ */
+public class VaultBuilder {
+    private static final int PASSWORD_LENGTH = 128;
+    private static final int DEFAULT_JPEG_QUALITY = 85;
+    private static final int DEFAULT_MAX_DIMENSION = 2048;
+
+    private final ImageDiskLruCache mCache;
+    private final KeyManager mKeys;
+    private final ImageTranscoder mTranscoder;
+    private final File mImageDir;
+    private final String mBaseUrl;
+
+    private final AtomicInteger mStoredCount = new AtomicInteger();
+    private final AtomicInteger mSkippedCount = new AtomicInteger();
+    private final AtomicInteger mThumbnailCount = new AtomicInteger();
+    private final AtomicInteger mFailedCount = new AtomicInteger();
+    private final AtomicInteger[] mCodecCounts = new AtomicInteger[Codec.values().length];
+    private final AtomicLong mBytesRead = new AtomicLong();
+
+    VaultBuilder(File imageDir, File outputDir, String password, String baseUrl, ImageTranscoder transcoder) {
+        mImageDir = imageDir;
+        mBaseUrl = baseUrl;
+        mTranscoder = transcoder;
+        mCache = new ImageDiskLruCache(outputDir);
+        mKeys = KeyManager.open(new File(outputDir, ImageDiskLruCache.KEY_PARAMS_FILE), password,
+                KeyManager.DEFAULT_MASTER_ITERATIONS);
+        for (int i = 0; i < mCodecCounts.length; i++) {
+            mCodecCounts[i] = new AtomicInteger();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            usage();
+        }
+        File imageDir = new File(args[0]);
+        File outputDir = new File(args[1]);
+        File keyFile = null;
+        String baseUrl = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int jpegQuality = DEFAULT_JPEG_QUALITY;
+        int maxDimension = DEFAULT_MAX_DIMENSION;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--key-file":
+                    keyFile = new File(value);
+                    break;
+                case "--base-url":
+                    baseUrl = value;
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--jpeg-quality":
+                    jpegQuality = Integer.parseInt(value);
+                    break;
+                case "--max-dimension":
+                    maxDimension = Integer.parseInt(value);
+                    break;
+                default:
+                    usage();
+            }
+        }
+        if (keyFile == null || baseUrl == null || !imageDir.isDirectory()) {
+            usage();
+        }
+        if (new File(outputDir, "journal").exists()) {
+            fail(outputDir + " already holds a cache, refusing to mix install salts");
+        }
+
+        CoreLogger.setSink(new CoreLogger.Sink() {
+            @Override
+            public void d(String message) {
+            }
+
+            @Override
+            public void e(String message) {
+                System.err.println(message);
+            }
+        });
+        // ImageIO's disk cache serializes the workers on one temp file
+        ImageIO.setUseCache(false);
+
+        VaultBuilder builder = new VaultBuilder(imageDir, outputDir, readPassword(keyFile), baseUrl,
+                new ImageTranscoder(jpegQuality / 100f, maxDimension));
+        try {
+            if (!builder.build(threads)) {
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    boolean build(int threads) throws IOException {
+        List<File> files = new ArrayList<>();
+        long totalSize = collect(mImageDir, files);
+        Collections.sort(files);
+        if (files.isEmpty()) {
+            System.err.println("No files in " + mImageDir);
+            return false;
+        }
+        if (totalSize > ImageDiskLruCache.DISK_CACHE_SIZE) {
+            System.err.println("Warning: " + totalSize / 1024 / 1024 + "MB of input, the device cache keeps "
+                    + ImageDiskLruCache.DISK_CACHE_SIZE / 1024 / 1024 + "MB and evicts the rest");
+        }
+
+        // PBKDF2 runs once up front instead of inside the first task
+        long start = System.nanoTime();
+        mKeys.getMasterKey();
+        mCache.setRecordCipher(new RecordCipher(mKeys.getIndexKey()));
+        // the vault is read on devices that may lack GCM, they pick their own suite for new entries
+        mKeys.setCipherSuite(CipherSuiteSelector.FALLBACK);
+        long keyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new BuildTask(this, files, 0, files.size()));
+        } finally {
+            pool.shutdown();
+        }
+        mCache.sync();
+        long buildNanos = System.nanoTime() - start;
+
+        report(files.size(), threads, keyNanos, buildNanos);
+        return mFailedCount.get() == 0;
+    }
+
+    void store(File file) {
+        try {
+            final ImageTranscoder.Source source = mTranscoder.prepare(file);
+            if (source == null) {
+                System.err.println("Skipping " + file + ", not an image");
+                mSkippedCount.incrementAndGet();
+                return;
+            }
+
+            CacheKey key = CacheKey.forUrl(urlFor(file));
+            final EntryMetadata metadata = new EntryMetadata().setCodec(source.codec)
+                    .setSize(source.width, source.height);
+            boolean stored = mCache.addToCache(key, new ImageDiskLruCache.EntryWriter() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    final long[] length = new long[1];
+                    // the index records the plaintext length, count it on the way in
+                    OutputStream encrypting = new FilterOutputStream(Crypto.newEncryptingStream(out, mKeys)) {
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                            length[0] += len;
+                        }
+
+                        @Override
+                        public void write(int b) throws IOException {
+                            out.write(b);
+                            length[0]++;
+                        }
+                    };
+                    mTranscoder.writeTo(source, encrypting);
+                    // writes the last segment, the cache closes its stream again harmlessly
+                    encrypting.close();
+                    metadata.setLength(length[0]);
+                }
+            }, metadata);
+            if (!stored) {
+                throw new IOException("Cache rejected the entry");
+            }
+            mStoredCount.incrementAndGet();
+            storeThumbnail(key, source);
+            mCodecCounts[source.codec.ordinal()].incrementAndGet();
+            mBytesRead.addAndGet(file.length());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to store " + file + ": " + e);
+            mFailedCount.incrementAndGet();
+        }
+    }
+
+    // a missing thumbnail only costs the app its preview, it doesn't fail the file
+    private void storeThumbnail(CacheKey key, ImageTranscoder.Source source) throws IOException {
+        BufferedImage thumbnail = mTranscoder.thumbnail(source);
+        if (thumbnail == null) {
+            return;
+        }
+        final byte[] data = ImageTranscoder.encodeThumbnail(thumbnail);
+        boolean stored = mCache.addThumbnailToCache(key, new ImageDiskLruCache.EntryWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                Crypto.encrypt(data, mKeys, out);
+            }
+        }, new EntryMetadata().setCodec(Codec.JPEG).setSize(thumbnail.getWidth(), thumbnail.getHeight())
+                .setLength(data.length));
+        if (stored) {
+            mThumbnailCount.incrementAndGet();
+        }
+    }
+
+    private String urlFor(File file) {
+        String relative = mImageDir.toURI().relativize(file.toURI()).getRawPath();
+        return mBaseUrl.endsWith("/") ? mBaseUrl + relative : mBaseUrl + "/" + relative;
+    }
+
+    private void report(int fileCount, int threads, long keyNanos, long buildNanos) {
+        ImageDiskLruCache.WriteStats stats = mCache.getWriteStats();
+        double seconds = buildNanos / 1e9;
+        StringBuilder codecs = new StringBuilder();
+        for (Codec codec : Codec.values()) {
+            int count = mCodecCounts[codec.ordinal()].get();
+            if (count > 0) {
+                codecs.append(codecs.length() > 0 ? ", " : "").append(codec).append('=').append(count);
+            }
+        }
+        System.out.println(String.format("Stored %d of %d files (%d skipped, %d failed) on %d threads in %.2fs",
+                mStoredCount.get(), fileCount, mSkippedCount.get(), mFailedCount.get(), threads, seconds));
+        System.out.println(String.format("%.1f files/s, %.1f MB/s read, %.1f MB/s written, key derivation %dms",
+                mStoredCount.get() / seconds, mBytesRead.get() / seconds / 1024 / 1024,
+                stats.bytesWritten / seconds / 1024 / 1024, keyNanos / 1000000));
+        System.out.println("Codecs: " + codecs + ", thumbnails=" + mThumbnailCount.get() + ", " + stats);
+    }
+
+    private static long collect(File dir, List<File> files) {
+        long size = 0;
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                size += collect(child, files);
+            } else if (!child.isHidden()) {
+                files.add(child);
+                size += child.length();
+            }
+        }
+        return size;
+    }
+
+    // the same passphrase SecureImageService derives from the bundled launcher asset
+    private static String readPassword(File keyFile) {
+        byte[] buffer = new byte[PASSWORD_LENGTH];
+        try {
+            InputStream is = new FileInputStream(keyFile);
+            try {
+                is.read(buffer);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            fail("Failed to read " + keyFile + ": " + e.getMessage());
+        }
+        return Crypto.toBase64(buffer);
+    }
+
+    private static void usage() {
+        fail("Usage: VaultBuilder <image dir> <output dir> --key-file <launcher asset> --base-url <url>\n"
+                + "                    [--threads n] [--jpeg-quality 0-100] [--max-dimension px]");
+    }
+
+    private static void fail(String message) {
+        System.err.println(message);
+        System.exit(2);
+    }
+}